@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Stops calls to devices that keep failing, such as boards that are switched off, so they fail
+ * right away instead of tying up threads and the network with doomed requests.
+ *
+ * Each device has its own circuit. It opens after {@link #FAILURE_THRESHOLD} consecutive
+ * failures, and calls to the device are refused while it is open. Once the open period has
+ * passed the circuit is half-open: a single call is let through as a probe, and closes the
+ * circuit if it succeeds. A failed probe opens the circuit again, for twice as long as before.
+ * Thread-safe.
+ */
+public class CircuitBreaker {
+    private static final String TAG = CircuitBreaker.class.getSimpleName();
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    /** Consecutive failures after which a device's circuit opens. */
+    public static final int FAILURE_THRESHOLD = 5;
+    /** How long a circuit first stays open. */
+    public static final long MIN_OPEN_MS = 5000;
+    /** Longest a circuit stays open after repeated failed probes. */
+    public static final long MAX_OPEN_MS = 120000;
+
+    private static CircuitBreaker sInstance;
+
+    /**
+     * Notified when a device's circuit changes state. Called on the thread of the call that
+     * caused the change.
+     */
+    public interface Listener {
+        void onCircuitStateChanged(String deviceId, int state);
+    }
+
+    /** The circuit of one device. */
+    private static class Circuit {
+        int state = STATE_CLOSED;
+        int consecutiveFailures;
+        long openMs = MIN_OPEN_MS;
+        long openedAtMs;
+        boolean probeInFlight;
+    }
+
+    private final HashMap<String, Circuit> mCircuits = new HashMap<>();
+    private volatile Listener mListener;
+
+    private long mOpened;
+    private long mRejected;
+
+    public static synchronized CircuitBreaker getInstance() {
+        if (sInstance == null) {
+            sInstance = new CircuitBreaker();
+        }
+        return sInstance;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns whether a call to the device may be made now. A call that is allowed must be
+     * followed by {@link #recordSuccess} or {@link #recordFailure}.
+     */
+    public boolean allow(String deviceId) {
+        boolean halfOpened = false;
+        synchronized (mCircuits) {
+            Circuit circuit = mCircuits.get(deviceId);
+            if (circuit == null || circuit.state == STATE_CLOSED) {
+                return true;
+            }
+            if (circuit.state == STATE_OPEN) {
+                if (SystemClock.elapsedRealtime() - circuit.openedAtMs < circuit.openMs) {
+                    mRejected++;
+                    return false;
+                }
+                circuit.state = STATE_HALF_OPEN;
+                halfOpened = true;
+            }
+            if (circuit.probeInFlight) {
+                mRejected++;
+                return false;
+            }
+            circuit.probeInFlight = true;
+        }
+        if (halfOpened) {
+            notifyChanged(deviceId, STATE_HALF_OPEN);
+        }
+        return true;
+    }
+
+    /** Records a call to the device that succeeded, closing its circuit. */
+    public void recordSuccess(String deviceId) {
+        synchronized (mCircuits) {
+            Circuit circuit = mCircuits.remove(deviceId);
+            if (circuit == null || circuit.state == STATE_CLOSED) {
+                return;
+            }
+        }
+        Log.i(TAG, "Circuit of " + deviceId + " closed");
+        notifyChanged(deviceId, STATE_CLOSED);
+    }
+
+    /** Records a call to the device that failed in a way that suggests it is unreachable. */
+    public void recordFailure(String deviceId) {
+        long openMs;
+        synchronized (mCircuits) {
+            Circuit circuit = mCircuits.get(deviceId);
+            if (circuit == null) {
+                circuit = new Circuit();
+                mCircuits.put(deviceId, circuit);
+            }
+            circuit.consecutiveFailures++;
+            if (circuit.state == STATE_HALF_OPEN) {
+                circuit.probeInFlight = false;
+                circuit.openMs = Math.min(circuit.openMs * 2, MAX_OPEN_MS);
+            } else if (circuit.state == STATE_OPEN
+                    || circuit.consecutiveFailures < FAILURE_THRESHOLD) {
+                return;
+            }
+            circuit.state = STATE_OPEN;
+            circuit.openedAtMs = SystemClock.elapsedRealtime();
+            openMs = circuit.openMs;
+            mOpened++;
+        }
+        Log.i(TAG, "Circuit of " + deviceId + " opened for " + openMs + "ms");
+        notifyChanged(deviceId, STATE_OPEN);
+    }
+
+    /**
+     * Returns the state of the device's circuit, one of the {@code STATE_} constants. An open
+     * circuit whose open period has passed is reported half-open, since the next call will probe.
+     */
+    public int getState(String deviceId) {
+        synchronized (mCircuits) {
+            Circuit circuit = mCircuits.get(deviceId);
+            if (circuit == null) {
+                return STATE_CLOSED;
+            }
+            if (circuit.state == STATE_OPEN
+                    && SystemClock.elapsedRealtime() - circuit.openedAtMs >= circuit.openMs) {
+                return STATE_HALF_OPEN;
+            }
+            return circuit.state;
+        }
+    }
+
+    private void notifyChanged(String deviceId, int state) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onCircuitStateChanged(deviceId, state);
+        }
+    }
+
+    /** Returns a one-line summary of the circuits. */
+    public String describe() {
+        synchronized (mCircuits) {
+            int open = 0;
+            for (Circuit circuit : mCircuits.values()) {
+                if (circuit.state != STATE_CLOSED) {
+                    open++;
+                }
+            }
+            return open + " circuits open, opened " + mOpened + " times, " + mRejected
+                    + " calls refused";
+        }
+    }
+
+    /** Logs the circuit counters. */
+    public void logStats() {
+        Log.i(TAG, describe());
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.data.Command;
+import com.google.android.apps.weave.apis.data.CommandResult;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+import com.google.android.apps.weave.apis.data.responses.WeaveError;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Executes Weave commands through a channel per device, so commands touching the same LED
+ * complete in the order they were issued, however the thread pool schedules them. Commands that
+ * are independent, because they touch different LEDs or different devices, are pipelined: up to
+ * a window of them execute concurrently, with a smaller window per device so one busy device
+ * can't hold up the others. Commands that aren't {@link LedFlasher} set commands are ordered
+ * against every other command of their device.
+ *
+ * Unless another {@link Runner} and executor are given, every command is run through the
+ * {@link WeaveGateway}, in the command lane of the {@link WeaveScheduler}. Thread-safe.
+ */
+public class CommandPipeline {
+    private static final String TAG = CommandPipeline.class.getSimpleName();
+
+    /** Default maximum number of commands executing at the same time. */
+    public static final int DEFAULT_WINDOW = 8;
+    /** Default maximum number of commands executing at the same time on one device. */
+    public static final int DEFAULT_DEVICE_WINDOW = 4;
+
+    // Ordering key of commands that may touch any LED of their device.
+    private static final int ALL_LEDS = -1;
+
+    private static CommandPipeline sInstance;
+
+    /**
+     * Receives the result of a command submitted with {@link #submit}. Called on the
+     * command lane's thread that executed it.
+     */
+    public interface Callback {
+        void onCommandFinished(Response<CommandResult> result);
+    }
+
+    /**
+     * Makes the call of a command to its device, blocking until it completes.
+     */
+    public interface Runner {
+        Response<CommandResult> run(WeaveApiClient apiClient, WeaveDevice device,
+                Command command);
+    }
+
+    private static final Runner GATEWAY_RUNNER = new Runner() {
+        @Override
+        public Response<CommandResult> run(WeaveApiClient apiClient, WeaveDevice device,
+                Command command) {
+            return WeaveGateway.getInstance().execute(apiClient, device, command);
+        }
+    };
+
+    /** A command waiting for, or going through, execution. */
+    private static class Ticket {
+        final WeaveApiClient apiClient;
+        final WeaveDevice device;
+        final Command command;
+        final int led;
+        // Null for commands executed synchronously by their caller.
+        final Callback callback;
+        final long submittedAtMs = SystemClock.elapsedRealtime();
+        boolean started;
+
+        Ticket(WeaveApiClient apiClient, WeaveDevice device, Command command, int led,
+                Callback callback) {
+            this.apiClient = apiClient;
+            this.device = device;
+            this.command = command;
+            this.led = led;
+            this.callback = callback;
+        }
+    }
+
+    /** The unfinished commands of one device, in issue order. */
+    private static class Channel {
+        final ArrayList<Ticket> tickets = new ArrayList<>();
+        int inFlight;
+    }
+
+    private final int mWindow;
+    private final int mDeviceWindow;
+    private final Runner mRunner;
+    // Runs submitted commands; the caller's thread runs those passed to execute().
+    private final Executor mExecutor;
+    // Ordered by when each device last had a command started, least recent first.
+    private final LinkedHashMap<String, Channel> mChannels = new LinkedHashMap<>();
+    private int mInFlight;
+
+    private long mSubmitted;
+    private long mCompleted;
+    private long mHeldForOrder;
+    private long mTotalWaitMs;
+    private long mMaxWaitMs;
+    private int mMaxInFlight;
+
+    /**
+     * Returns the process-wide pipeline.
+     */
+    public static synchronized CommandPipeline getInstance() {
+        if (sInstance == null) {
+            sInstance = new CommandPipeline(DEFAULT_WINDOW, DEFAULT_DEVICE_WINDOW);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param window Maximum number of commands executing at the same time.
+     * @param deviceWindow Maximum number of commands executing at the same time on one device.
+     */
+    public CommandPipeline(int window, int deviceWindow) {
+        this(window, deviceWindow, GATEWAY_RUNNER,
+                WeaveScheduler.getInstance().executor(WeaveScheduler.PRIORITY_COMMAND));
+    }
+
+    /**
+     * @param window Maximum number of commands executing at the same time.
+     * @param deviceWindow Maximum number of commands executing at the same time on one device.
+     * @param runner Makes the calls of the commands.
+     * @param executor Runs submitted commands; needs at least {@code window} threads for the
+     *                 window to be filled.
+     */
+    public CommandPipeline(int window, int deviceWindow, Runner runner, Executor executor) {
+        mWindow = window;
+        mDeviceWindow = deviceWindow;
+        mRunner = runner;
+        mExecutor = executor;
+    }
+
+    /**
+     * Queues a command, to be executed in the command lane of the {@link WeaveScheduler} once
+     * every earlier command touching the same LED has finished and the window has room.
+     */
+    public void submit(WeaveApiClient apiClient, WeaveDevice device, Command command,
+            Callback callback) {
+        synchronized (this) {
+            enqueue(new Ticket(apiClient, device, command, ledOf(command), callback));
+        }
+        dispatch();
+    }
+
+    /**
+     * Executes a command on the calling thread, once every earlier command touching the same LED
+     * has finished and the window has room. Blocks until then, so must not be called from the
+     * main thread. If interrupted while waiting, returns an error without executing the command.
+     */
+    public Response<CommandResult> execute(WeaveApiClient apiClient, WeaveDevice device,
+            Command command) {
+        Ticket ticket = new Ticket(apiClient, device, command, ledOf(command), null);
+        List<Ticket> ready;
+        synchronized (this) {
+            enqueue(ticket);
+            ready = startReady();
+        }
+        runAll(ready);
+        InterruptedException interrupted = null;
+        synchronized (this) {
+            try {
+                while (!ticket.started) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!ticket.started) {
+                    // Commands held back behind this one may run now.
+                    remove(ticket);
+                    ready = startReady();
+                    interrupted = e;
+                }
+            }
+        }
+        if (interrupted != null) {
+            runAll(ready);
+            return Response.createError(WeaveError.fromException(interrupted));
+        }
+        try {
+            return mRunner.run(apiClient, device, command);
+        } finally {
+            finish(ticket);
+        }
+    }
+
+    private void enqueue(Ticket ticket) {
+        String deviceId = ticket.device.getId();
+        Channel channel = mChannels.get(deviceId);
+        if (channel == null) {
+            channel = new Channel();
+            mChannels.put(deviceId, channel);
+        }
+        channel.tickets.add(ticket);
+        mSubmitted++;
+        if (isBlocked(channel, channel.tickets.size() - 1)) {
+            mHeldForOrder++;
+        }
+    }
+
+    private void remove(Ticket ticket) {
+        String deviceId = ticket.device.getId();
+        Channel channel = mChannels.get(deviceId);
+        channel.tickets.remove(ticket);
+        if (ticket.started) {
+            channel.inFlight--;
+            mInFlight--;
+        }
+        if (channel.tickets.isEmpty()) {
+            mChannels.remove(deviceId);
+        }
+    }
+
+    private void finish(Ticket ticket) {
+        List<Ticket> ready;
+        synchronized (this) {
+            remove(ticket);
+            mCompleted++;
+            ready = startReady();
+        }
+        runAll(ready);
+    }
+
+    private void dispatch() {
+        List<Ticket> ready;
+        synchronized (this) {
+            ready = startReady();
+        }
+        runAll(ready);
+    }
+
+    /**
+     * Starts every command that may run now, taking one per device in turn so devices share the
+     * window fairly. Commands executed by their caller are woken up; the others are returned, to
+     * be handed to the scheduler outside the lock.
+     */
+    private List<Ticket> startReady() {
+        ArrayList<Ticket> ready = new ArrayList<>();
+        boolean wakeCallers = false;
+        ArrayList<String> served = new ArrayList<>();
+        boolean progress = true;
+        while (progress && mInFlight < mWindow) {
+            progress = false;
+            for (Map.Entry<String, Channel> entry : mChannels.entrySet()) {
+                if (mInFlight >= mWindow) {
+                    break;
+                }
+                Ticket ticket = nextReady(entry.getValue());
+                if (ticket == null) {
+                    continue;
+                }
+                ticket.started = true;
+                entry.getValue().inFlight++;
+                mInFlight++;
+                mMaxInFlight = Math.max(mMaxInFlight, mInFlight);
+                long waitMs = SystemClock.elapsedRealtime() - ticket.submittedAtMs;
+                mTotalWaitMs += waitMs;
+                mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+                if (ticket.callback == null) {
+                    wakeCallers = true;
+                } else {
+                    ready.add(ticket);
+                }
+                if (!served.contains(entry.getKey())) {
+                    served.add(entry.getKey());
+                }
+                progress = true;
+            }
+        }
+        // Devices just served go to the back of the line.
+        for (String deviceId : served) {
+            mChannels.put(deviceId, mChannels.remove(deviceId));
+        }
+        if (wakeCallers) {
+            notifyAll();
+        }
+        return ready;
+    }
+
+    private Ticket nextReady(Channel channel) {
+        if (channel.inFlight >= mDeviceWindow) {
+            return null;
+        }
+        for (int i = 0; i < channel.tickets.size(); i++) {
+            Ticket ticket = channel.tickets.get(i);
+            if (!ticket.started && !isBlocked(channel, i)) {
+                return ticket;
+            }
+        }
+        return null;
+    }
+
+    /** Whether an earlier unfinished command of the channel touches the same LED. */
+    private static boolean isBlocked(Channel channel, int index) {
+        int led = channel.tickets.get(index).led;
+        for (int i = 0; i < index; i++) {
+            int earlier = channel.tickets.get(i).led;
+            if (earlier == led || earlier == ALL_LEDS || led == ALL_LEDS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void runAll(List<Ticket> tickets) {
+        for (final Ticket ticket : tickets) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Response<CommandResult> result = null;
+                    try {
+                        result = mRunner.run(ticket.apiClient, ticket.device, ticket.command);
+                    } finally {
+                        try {
+                            // Reported before the next command for the LED may start.
+                            ticket.callback.onCommandFinished(result);
+                        } finally {
+                            // Even if the callback threw; otherwise later commands to the LED
+                            // would wait forever.
+                            finish(ticket);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static int ledOf(Command command) {
+        if (!LedFlasher.COMMAND_SET.equals(command.getName())) {
+            return ALL_LEDS;
+        }
+        Object led = command.getParameters().get(LedFlasher.PARAM_LED);
+        return led instanceof Number ? ((Number) led).intValue() : ALL_LEDS;
+    }
+
+    /** Returns how many commands are executing right now. */
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /** Returns how many submitted commands haven't started executing yet. */
+    public synchronized int getQueued() {
+        int queued = 0;
+        for (Channel channel : mChannels.values()) {
+            queued += channel.tickets.size() - channel.inFlight;
+        }
+        return queued;
+    }
+
+    /** Returns a one-line summary of the pipeline counters. */
+    public synchronized String describe() {
+        long started = mCompleted + mInFlight;
+        return "window " + mWindow + " (" + mDeviceWindow + " per device), in flight "
+                + mInFlight + " (max " + mMaxInFlight + "), queued " + getQueued()
+                + ", submitted " + mSubmitted + ", held for order " + mHeldForOrder
+                + ", avg wait " + (started == 0 ? 0 : mTotalWaitMs / started)
+                + "ms, max wait " + mMaxWaitMs + "ms";
+    }
+
+    /** Logs the pipeline counters. */
+    public void logStats() {
+        Log.i(TAG, "Commands: " + describe());
+    }
+}
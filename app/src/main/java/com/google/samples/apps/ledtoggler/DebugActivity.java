@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.Toolbar;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ * Debug screen showing the latency, error and concurrency metrics of every Weave call, and the
+ * state of the scheduler lanes. The report refreshes while visible and can be shared as text.
+ * The menu also switches the app between real and simulated devices, and runs load tests of the
+ * LED command path against simulated devices. Only reachable from the toolbar menus of debug
+ * builds.
+ */
+public class DebugActivity extends AppCompatActivity {
+
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    private TextView mReport;
+    private ToggleLoadHarness mLoadHarness;
+    private String mLoadReport;
+    private final Handler mHandler = new Handler();
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mReport.setText(buildReport());
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Shows or hides the debug menu item, depending on whether this is a debug build.
+     */
+    public static void prepareMenu(Menu menu) {
+        MenuItem item = menu.findItem(R.id.action_debug);
+        if (item != null) {
+            item.setVisible(BuildConfig.DEBUG);
+        }
+    }
+
+    public static void start(Context context) {
+        context.startActivity(new Intent(context, DebugActivity.class));
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_debug);
+        mReport = (TextView) findViewById(R.id.debug_report);
+
+        Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
+        toolbar.setTitle(R.string.title_debug);
+        setSupportActionBar(toolbar);
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+
+        mLoadHarness = new ToggleLoadHarness(this);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mHandler.post(mRefresh);
+    }
+
+    @Override
+    protected void onPause() {
+        mHandler.removeCallbacks(mRefresh);
+        super.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mLoadHarness.cancel();
+        super.onDestroy();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_debug, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_simulate).setChecked(WeaveGateway.getInstance().isSimulated());
+        boolean idle = !mLoadHarness.isRunning();
+        menu.findItem(R.id.action_simulate).setEnabled(idle);
+        menu.findItem(R.id.action_load_sustained).setEnabled(idle);
+        menu.findItem(R.id.action_load_burst).setEnabled(idle);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_refresh:
+                mReport.setText(buildReport());
+                return true;
+            case R.id.action_export:
+                Intent intent = new Intent(Intent.ACTION_SEND)
+                        .setType("text/plain")
+                        .putExtra(Intent.EXTRA_SUBJECT, getString(R.string.title_debug))
+                        .putExtra(Intent.EXTRA_TEXT, buildReport());
+                startActivity(Intent.createChooser(intent, getString(R.string.menu_export)));
+                return true;
+            case R.id.action_simulate:
+                if (WeaveGateway.getInstance().isSimulated()) {
+                    WeaveGateway.getInstance().useWeaveApi();
+                } else {
+                    WeaveGateway.getInstance().useSimulator(new SimulatedWeaveBackend.Config());
+                }
+                invalidateOptionsMenu();
+                mReport.setText(buildReport());
+                return true;
+            case R.id.action_load_sustained:
+                startLoadTest(ToggleLoadHarness.Config.sustained());
+                return true;
+            case R.id.action_load_burst:
+                startLoadTest(ToggleLoadHarness.Config.fleetBurst());
+                return true;
+            case android.R.id.home:
+                finish();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void startLoadTest(ToggleLoadHarness.Config config) {
+        mLoadReport = getString(R.string.load_test_running);
+        mLoadHarness.start(config, new ToggleLoadHarness.Listener() {
+            @Override
+            public void onLoadTestFinished(String report) {
+                mLoadReport = report;
+                invalidateOptionsMenu();
+                mReport.setText(buildReport());
+            }
+        });
+        invalidateOptionsMenu();
+        mReport.setText(buildReport());
+    }
+
+    private String buildReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(BuildConfig.APPLICATION_ID).append(' ').append(BuildConfig.VERSION_NAME)
+                .append(", ").append(DateFormat.getDateTimeInstance().format(new Date()))
+                .append("\n\n== Backend ==\n")
+                .append(WeaveGateway.getInstance().getBackend()).append('\n')
+                .append("\n== Weave calls ==\n")
+                .append(WeaveMetrics.getInstance().dump())
+                .append("\n== Command pipeline ==\n")
+                .append(CommandPipeline.getInstance().describe()).append('\n')
+                .append("\n== Device state cache ==\n")
+                .append(DeviceStateCache.getInstance().describe()).append('\n')
+                .append("\n== Model images ==\n")
+                .append(ModelImageLoader.getInstance(this).describe()).append('\n')
+                .append("\n== Circuit breakers ==\n")
+                .append(CircuitBreaker.getInstance().describe()).append('\n')
+                .append("\n== Scheduler lanes ==\n");
+        WeaveScheduler scheduler = WeaveScheduler.getInstance();
+        for (int lane = 0; lane < scheduler.getLaneCount(); lane++) {
+            report.append(scheduler.describeLane(lane)).append('\n');
+        }
+        if (mLoadReport != null) {
+            report.append("\n== Load test ==\n").append(mLoadReport).append('\n');
+        }
+        return report.toString();
+    }
+}
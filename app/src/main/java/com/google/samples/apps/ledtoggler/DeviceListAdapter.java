@@ -15,11 +15,13 @@
  */
 package com.google.samples.apps.ledtoggler;
 
+import android.content.Context;
 import android.content.Intent;
-import android.support.v4.util.ArrayMap;
-import android.support.v4.util.Pair;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -29,42 +31,173 @@ import android.widget.TextView;
 import com.google.android.apps.weave.apis.data.ModelManifest;
 import com.google.android.apps.weave.apis.data.WeaveDevice;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
 
 /**
  * Adapter for the list of devices. For each {@link WeaveDevice} added to this
  * adapter, a corresponding card will be created. When clicked, the card will launch a new
  * {@link LedActivity}.
+ *
+ * Devices are shown sorted by name. Additions and removals are batched until the next frame,
+ * then diffed against the current list off the main thread, so only the rows that were actually
+ * inserted, removed or changed are notified and rebound.
+ *
+ * Devices known from a previous run can be shown before they are discovered again; they are
+ * drawn dimmed until then.
+ *
+ * Each card shows the image of the device's model, if its manifest has one, loaded in the
+ * background by the {@link ModelImageLoader}. The load is cancelled if the row is recycled before
+ * the image arrives.
  */
 public class DeviceListAdapter extends RecyclerView.Adapter<DeviceListAdapter.ViewHolder> {
     private static final String TAG = DeviceListAdapter.class.getSimpleName();
 
-    private final ArrayMap<String, Pair<WeaveDevice, ModelManifest>> mDataSet;
+    /** Alpha of devices that haven't been discovered again since the last run. */
+    private static final float STALE_ALPHA = 0.5f;
+    // Payload of rows rebound only to update their transport status.
+    private static final Object PAYLOAD_TRANSPORT = new Object();
+
+    /**
+     * A device shown in the list, with the manifest describing its model, if known.
+     */
+    public static class Item {
+        public final WeaveDevice device;
+        public final ModelManifest manifest;
+        /** One of the {@code TransportMonitor.TRANSPORT_} constants. */
+        public final int transport;
+        /** Whether the device can be reached over the cloud, whichever route calls take. */
+        public final boolean hasCloud;
+        /** Whether the device is only known from a previous run. */
+        public final boolean stale;
+
+        public Item(WeaveDevice device, ModelManifest manifest) {
+            this(device, manifest, TransportMonitor.routeOf(device),
+                    TransportMonitor.hasCloud(device), false);
+        }
+
+        public Item(WeaveDevice device, ModelManifest manifest, int transport, boolean hasCloud,
+                boolean stale) {
+            this.device = device;
+            this.manifest = manifest;
+            this.transport = transport;
+            this.hasCloud = hasCloud;
+            this.stale = stale;
+        }
+
+        String getModelName() {
+            return manifest == null ? null : manifest.getModelName();
+        }
+    }
+
+    private static final SortedListDiff.Callback<Item> DIFF_CALLBACK =
+            new SortedListDiff.Callback<Item>() {
+                @Override
+                public int compare(Item a, Item b) {
+                    int order = compareStrings(a.device.getName(), b.device.getName());
+                    return order != 0 ? order : a.device.getId().compareTo(b.device.getId());
+                }
+
+                @Override
+                public boolean areContentsTheSame(Item oldItem, Item newItem) {
+                    return equal(oldItem.device.getDescription(), newItem.device.getDescription())
+                            && oldItem.transport == newItem.transport
+                            && oldItem.hasCloud == newItem.hasCloud
+                            && oldItem.stale == newItem.stale
+                            && equal(oldItem.getModelName(), newItem.getModelName());
+                }
+            };
+
+    private final SortedListDiff.UpdateListener mUpdateListener =
+            new SortedListDiff.UpdateListener() {
+                @Override
+                public void onInserted(int position, int count) {
+                    notifyItemRangeInserted(position, count);
+                }
+
+                @Override
+                public void onRemoved(int position, int count) {
+                    notifyItemRangeRemoved(position, count);
+                }
+
+                @Override
+                public void onChanged(int position, int count) {
+                    notifyItemRangeChanged(position, count);
+                }
+            };
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            applyPendingUpdates();
+        }
+    };
+
+    /** The list currently shown. Never modified in place, only replaced. */
+    private List<Item> mSnapshot = Collections.emptyList();
+
+    // Updates received since the last batch was handed off for diffing, keyed by device id.
+    private final LinkedHashMap<String, Item> mPendingAdds = new LinkedHashMap<>();
+    private final HashSet<String> mPendingRemovals = new HashSet<>();
+    // Devices discovered in this run, which stale entries must not replace.
+    private final HashSet<String> mDiscoveredIds = new HashSet<>();
+    private boolean mFrameScheduled;
+    private boolean mDiffInProgress;
+    // Rows currently on screen, whose devices are prefetched.
+    private final HashSet<ViewHolder> mAttached = new HashSet<>();
+    private StatePrefetcher mPrefetcher;
+    private final ModelImageLoader mImageLoader;
+    // Size model images are decoded at.
+    private final int mImageSizePx;
+    private final Context mContext;
+    // Transport status last bound for each device, so rows whose status is unchanged are skipped
+    // on refresh.
+    private final HashMap<String, String> mBoundStatus = new HashMap<>();
 
     public class ViewHolder extends RecyclerView.ViewHolder {
 
         public final TextView name;
         public final TextView description;
         public final TextView deviceType;
+        public final TextView transport;
         public final ImageView deviceImage;
+        // The discovered device bound to this row, or null if it is only known from a snapshot.
+        WeaveDevice device;
+        // The model image being loaded for this row, if any, and its URL.
+        ModelImageLoader.Request imageRequest;
+        String imageUrl;
 
         public ViewHolder(final View parentView, final TextView name,
                           final TextView description, final TextView deviceType,
-                          final ImageView deviceImage) {
+                          final TextView transport, final ImageView deviceImage) {
             super(parentView);
             this.name = name;
             this.description = description;
             this.deviceType = deviceType;
+            this.transport = transport;
             this.deviceImage = deviceImage;
 
             View.OnClickListener clickListener = new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
                     int position = getAdapterPosition();
-                    WeaveDevice device = mDataSet.valueAt(position).first;
+                    if (position == RecyclerView.NO_POSITION) {
+                        return;
+                    }
+                    WeaveDevice device = mSnapshot.get(position).device;
                     Log.i(TAG, "Selecting device: " + device.getId());
+                    if (mPrefetcher != null) {
+                        mPrefetcher.onDeviceOpened(device);
+                    }
 
                     Intent intent = new Intent(v.getContext(), LedActivity.class);
-                    intent.putExtra(LedActivity.EXTRA_KEY_WEAVE_DEVICE, device);
+                    intent.putExtra(LedActivity.EXTRA_KEY_DEVICE_ID, device.getId());
                     v.getContext().startActivity(intent);
                 }
             };
@@ -73,8 +206,44 @@ public class DeviceListAdapter extends RecyclerView.Adapter<DeviceListAdapter.Vi
         }
     }
 
-    public DeviceListAdapter() {
-        mDataSet = new ArrayMap<>();
+    public DeviceListAdapter(Context context) {
+        mContext = context.getApplicationContext();
+        mImageLoader = ModelImageLoader.getInstance(context);
+        mImageSizePx = context.getResources().getDimensionPixelSize(R.dimen.device_picture_size);
+    }
+
+    /**
+     * Prefetches the state of devices as their rows come on screen, starting with those shown
+     * already.
+     */
+    public void setPrefetcher(StatePrefetcher prefetcher) {
+        mPrefetcher = prefetcher;
+        for (ViewHolder holder : mAttached) {
+            if (holder.device != null) {
+                prefetcher.onDeviceShown(holder.device);
+            }
+        }
+    }
+
+    @Override
+    public void onViewAttachedToWindow(ViewHolder holder) {
+        mAttached.add(holder);
+        if (mPrefetcher != null && holder.device != null) {
+            mPrefetcher.onDeviceShown(holder.device);
+        }
+    }
+
+    @Override
+    public void onViewDetachedFromWindow(ViewHolder holder) {
+        mAttached.remove(holder);
+        if (mPrefetcher != null && holder.device != null) {
+            mPrefetcher.onDeviceHidden(holder.device);
+        }
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        cancelImage(holder);
     }
 
     @Override
@@ -87,37 +256,268 @@ public class DeviceListAdapter extends RecyclerView.Adapter<DeviceListAdapter.Vi
                 (TextView) v.findViewById(R.id.device_title),
                 (TextView) v.findViewById(R.id.device_description),
                 (TextView) v.findViewById(R.id.device_device_type),
+                (TextView) v.findViewById(R.id.device_transport),
                 (ImageView) v.findViewById(R.id.device_picture));
     }
 
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
-        Pair<WeaveDevice, ModelManifest> data= mDataSet.valueAt(position);
-        holder.name.setText(data.first.getName());
-        holder.description.setText(data.first.getDescription());
+        Item data = mSnapshot.get(position);
+        bindDevice(holder, data.stale ? null : data.device);
+        holder.name.setText(data.device.getName());
+        holder.description.setText(data.device.getDescription());
 
-        if (data.first.getDiscoveryTransport().hasCloud()) {
+        holder.itemView.setAlpha(data.stale ? STALE_ALPHA : 1f);
+        bindImage(holder, data);
+        if (data.manifest == null) {
+            holder.deviceType.setText(R.string.unknown_device_type);
+        } else {
+            holder.deviceType.setText(data.manifest.getModelName());
+        }
+        bindTransport(holder, data);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        if (!payloads.isEmpty() && Collections.singleton(PAYLOAD_TRANSPORT)
+                .containsAll(payloads)) {
+            // Only the status changed; leave the image and prefetching alone.
+            bindTransport(holder, mSnapshot.get(position));
+        } else {
+            onBindViewHolder(holder, position);
+        }
+    }
+
+    /**
+     * Binds the device to the row, and keeps the prefetcher in step if the row stays on screen
+     * while it shows a different device, such as a stale entry replaced by a discovered one.
+     */
+    private void bindDevice(ViewHolder holder, WeaveDevice device) {
+        WeaveDevice previous = holder.device;
+        holder.device = device;
+        if (mPrefetcher == null || previous == device || !mAttached.contains(holder)) {
+            return;
+        }
+        if (previous != null) {
+            mPrefetcher.onDeviceHidden(previous);
+        }
+        if (device != null) {
+            mPrefetcher.onDeviceShown(device);
+        }
+    }
+
+    /**
+     * Shows the model image if it is in memory. Otherwise shows the bundled board icon, tinted by
+     * transport, until the image is loaded.
+     */
+    private void bindImage(final ViewHolder holder, Item data) {
+        String url = data.manifest == null ? null : data.manifest.getDeviceImageUrl();
+        if (holder.imageRequest != null && holder.imageUrl.equals(url)) {
+            // Rebound while its image is on the way, such as for a transport update.
+            return;
+        }
+        cancelImage(holder);
+        Bitmap bitmap = url == null ? null : mImageLoader.getCached(url, mImageSizePx,
+                mImageSizePx);
+        if (bitmap != null) {
+            holder.deviceImage.setImageBitmap(bitmap);
+            return;
+        }
+        if (data.hasCloud) {
             holder.deviceImage.setImageResource(R.drawable.ic_developer_board_blue_48dp);
         } else {
             holder.deviceImage.setImageResource(R.drawable.ic_developer_board_grey_48dp);
         }
-        if (data.second == null) {
-            holder.deviceType.setText(R.string.unknown_device_type);
+        if (url == null) {
+            return;
+        }
+        holder.imageUrl = url;
+        holder.imageRequest = mImageLoader.load(url, mImageSizePx, mImageSizePx,
+                new ModelImageLoader.Callback() {
+                    @Override
+                    public void onImageLoaded(Bitmap bitmap) {
+                        holder.imageRequest = null;
+                        if (bitmap != null) {
+                            holder.deviceImage.setImageBitmap(bitmap);
+                        }
+                    }
+                });
+    }
+
+    private static void cancelImage(ViewHolder holder) {
+        if (holder.imageRequest != null) {
+            holder.imageRequest.cancel();
+            holder.imageRequest = null;
+        }
+    }
+
+    /**
+     * Shows the transport the device is reached over and, once measured, how well it performs,
+     * or that calls to it are being refused by its circuit breaker.
+     */
+    private void bindTransport(ViewHolder holder, Item data) {
+        String status = transportStatus(data);
+        mBoundStatus.put(data.device.getId(), status);
+        holder.transport.setText(status);
+    }
+
+    private String transportStatus(Item data) {
+        String transport = TransportMonitor.transportName(data.transport);
+        int circuit = data.stale ? CircuitBreaker.STATE_CLOSED
+                : CircuitBreaker.getInstance().getState(data.device.getId());
+        TransportMonitor.RouteStats stats = data.stale
+                ? null : TransportMonitor.getInstance().getCurrentRoute(data.device);
+        if (circuit == CircuitBreaker.STATE_OPEN) {
+            return mContext.getString(R.string.transport_status_unreachable, transport);
+        } else if (circuit == CircuitBreaker.STATE_HALF_OPEN) {
+            return mContext.getString(R.string.transport_status_reconnecting, transport);
+        } else if (stats == null || stats.getLatencyMs() == 0) {
+            return transport;
+        } else if (stats.isDegraded()) {
+            return mContext.getString(R.string.transport_status_degraded, transport,
+                    stats.getLatencyMs());
         } else {
-            holder.deviceType.setText(data.second.getModelName());
+            return mContext.getString(R.string.transport_status, transport,
+                    stats.getLatencyMs());
+        }
+    }
+
+    /**
+     * Updates the transport status of the rows whose latency or circuit state changed since they
+     * were bound. Other rows, and their images, are left alone.
+     */
+    public void refreshTransportStatus() {
+        for (int i = 0; i < mSnapshot.size(); i++) {
+            Item item = mSnapshot.get(i);
+            String bound = mBoundStatus.get(item.device.getId());
+            if (bound != null && !bound.equals(transportStatus(item))) {
+                notifyItemChanged(i, PAYLOAD_TRANSPORT);
+            }
+        }
+    }
+
+    /**
+     * Rebinds the row of a device, so a circuit state changed since it was bound is shown.
+     */
+    public void refreshTransportStatus(String deviceId) {
+        for (int i = 0; i < mSnapshot.size(); i++) {
+            if (mSnapshot.get(i).device.getId().equals(deviceId)) {
+                notifyItemChanged(i, PAYLOAD_TRANSPORT);
+                return;
+            }
         }
     }
 
     @Override
     public int getItemCount() {
-        return mDataSet.size();
+        return mSnapshot.size();
     }
 
+    /**
+     * Adds a device, or updates it if already shown. Takes effect on the next frame.
+     */
     public void add(WeaveDevice device, ModelManifest manifest) {
-        mDataSet.put(device.getId(), new Pair<>(device, manifest));
+        mDiscoveredIds.add(device.getId());
+        mPendingRemovals.remove(device.getId());
+        mPendingAdds.put(device.getId(), new Item(device, manifest));
+        scheduleUpdate();
     }
 
+    /**
+     * Shows a device known from a previous run, dimmed, unless it has been discovered since.
+     * Takes effect on the next frame.
+     */
+    public void addStale(DeviceSnapshotStore.DeviceSnapshot snapshot) {
+        if (mDiscoveredIds.contains(snapshot.id) || mPendingRemovals.contains(snapshot.id)) {
+            return;
+        }
+        mPendingAdds.put(snapshot.id, new Item(snapshot.toDevice(), snapshot.toManifest(),
+                snapshot.transport, snapshot.hasCloud, true));
+        scheduleUpdate();
+    }
+
+    /**
+     * Removes a device, if shown. Takes effect on the next frame.
+     */
     public void remove(WeaveDevice device) {
-        mDataSet.remove(device.getId());
+        mDiscoveredIds.remove(device.getId());
+        mBoundStatus.remove(device.getId());
+        mPendingAdds.remove(device.getId());
+        mPendingRemovals.add(device.getId());
+        scheduleUpdate();
+    }
+
+    /**
+     * Returns the devices currently shown, in list order.
+     */
+    public List<WeaveDevice> getDevices() {
+        List<WeaveDevice> devices = new ArrayList<>(mSnapshot.size());
+        for (Item item : mSnapshot) {
+            devices.add(item.device);
+        }
+        return devices;
+    }
+
+    private void scheduleUpdate() {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    /**
+     * Hands the updates batched so far to a background task that builds the new list and diffs
+     * it against the current one. Only one batch is diffed at a time, since each diff is based
+     * on the list the previous one produced.
+     */
+    private void applyPendingUpdates() {
+        if (mDiffInProgress || (mPendingAdds.isEmpty() && mPendingRemovals.isEmpty())) {
+            return;
+        }
+        mDiffInProgress = true;
+        final List<Item> oldList = mSnapshot;
+        final ArrayList<Item> adds = new ArrayList<>(mPendingAdds.values());
+        final HashSet<String> removals = new HashSet<>(mPendingRemovals);
+        mPendingAdds.clear();
+        mPendingRemovals.clear();
+
+        new AsyncTask<Void, Void, SortedListDiff.Result>() {
+            private List<Item> mNewList;
+
+            @Override
+            protected SortedListDiff.Result doInBackground(Void... params) {
+                HashMap<String, Item> items = new HashMap<>(oldList.size() + adds.size());
+                for (Item item : oldList) {
+                    items.put(item.device.getId(), item);
+                }
+                for (Item item : adds) {
+                    items.put(item.device.getId(), item);
+                }
+                items.keySet().removeAll(removals);
+                ArrayList<Item> newList = new ArrayList<>(items.values());
+                Collections.sort(newList, DIFF_CALLBACK);
+                mNewList = newList;
+                return SortedListDiff.diff(oldList, newList, DIFF_CALLBACK);
+            }
+
+            @Override
+            protected void onPostExecute(SortedListDiff.Result result) {
+                mSnapshot = mNewList;
+                result.dispatchTo(mUpdateListener);
+                mDiffInProgress = false;
+                applyPendingUpdates();
+            }
+        }.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+    }
+
+    private static int compareStrings(String a, String b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return a.compareToIgnoreCase(b);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
     }
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+
+import java.util.HashMap;
+
+/**
+ * The devices discovered in this process, by id. Screens hand each other device ids only, and
+ * look the device up here, so they all share the same, latest device object instead of copies
+ * parcelled through intents. Thread-safe.
+ */
+public class DeviceRegistry {
+
+    private static DeviceRegistry sInstance;
+
+    private final HashMap<String, WeaveDevice> mDevices = new HashMap<>();
+
+    public static synchronized DeviceRegistry getInstance() {
+        if (sInstance == null) {
+            sInstance = new DeviceRegistry();
+        }
+        return sInstance;
+    }
+
+    /** Records a discovered device, replacing what was known about it. */
+    public synchronized void put(WeaveDevice device) {
+        mDevices.put(device.getId(), device);
+    }
+
+    /** Returns the device with the given id, or null if it hasn't been discovered. */
+    public synchronized WeaveDevice get(String deviceId) {
+        return mDevices.get(deviceId);
+    }
+
+    /** Forgets a device that is gone. */
+    public synchronized void remove(String deviceId) {
+        mDevices.remove(deviceId);
+    }
+}
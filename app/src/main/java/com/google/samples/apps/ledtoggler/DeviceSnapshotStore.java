@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.data.ModelManifest;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The last known device list and LED states, persisted in a small binary file so both can be
+ * shown as soon as the app starts, before discovery and state reads complete. Shown snapshots
+ * are stale by definition, and should be marked as such until confirmed.
+ *
+ * The snapshot is read from disk once, on first use, and written back in the background
+ * {@link #SAVE_DELAY_MS} after it first changes, so a burst of changes costs one write. The
+ * first call may hit the disk, so it should be made off the main thread. Thread-safe.
+ */
+public class DeviceSnapshotStore {
+    private static final String TAG = DeviceSnapshotStore.class.getSimpleName();
+
+    private static final String FILE_NAME = "device_snapshot.bin";
+    private static final int MAGIC = 0x4c454453; // "LEDS"
+    private static final int VERSION = 2;
+    /** How long changes are collected before the snapshot is written. */
+    public static final long SAVE_DELAY_MS = 500;
+    /** Most devices kept; the least recently updated are dropped first. */
+    private static final int MAX_DEVICES = 256;
+    /** Most LEDs a device may have in a snapshot; larger counts mean the file is corrupt. */
+    private static final int MAX_LEDS = 1 << 16;
+
+    private static DeviceSnapshotStore sInstance;
+
+    /**
+     * What was last known about a device.
+     */
+    public static class DeviceSnapshot {
+        public final String id;
+        public final String name;
+        public final String description;
+        public final String modelManifestId;
+        public final String modelName;
+        /** One of the {@code TransportMonitor.TRANSPORT_} constants. */
+        public final int transport;
+        /** Whether the device could be reached over the cloud. */
+        public final boolean hasCloud;
+        /** The last confirmed LED states, or null if never read. Must not be modified. */
+        public final LedStates leds;
+
+        DeviceSnapshot(String id, String name, String description, String modelManifestId,
+                String modelName, int transport, boolean hasCloud, LedStates leds) {
+            this.id = id;
+            this.name = name;
+            this.description = description;
+            this.modelManifestId = modelManifestId;
+            this.modelName = modelName;
+            this.transport = transport;
+            this.hasCloud = hasCloud;
+            this.leds = leds;
+        }
+
+        /** Returns a device standing in for the real one until it is discovered again. */
+        public WeaveDevice toDevice() {
+            WeaveDevice device = new WeaveDevice();
+            device.setId(id);
+            device.setName(name);
+            device.setDescription(description);
+            device.setModelManifestId(modelManifestId);
+            return device;
+        }
+
+        /** Returns a manifest holding what is known about the device's model, or null. */
+        public ModelManifest toManifest() {
+            if (modelName == null) {
+                return null;
+            }
+            ModelManifest manifest = new ModelManifest();
+            manifest.setId(modelManifestId);
+            manifest.setModelName(modelName);
+            return manifest;
+        }
+    }
+
+    private final File mFile;
+    // Insertion ordered, so the least recently updated devices come first.
+    private LinkedHashMap<String, DeviceSnapshot> mDevices;
+    private boolean mSaveScheduled;
+    private final Object mFileLock = new Object();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mPostSave = new Runnable() {
+        @Override
+        public void run() {
+            WeaveScheduler.getInstance().execute(WeaveScheduler.PRIORITY_BACKGROUND, mSave);
+        }
+    };
+
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<DeviceSnapshot> devices;
+            synchronized (DeviceSnapshotStore.this) {
+                mSaveScheduled = false;
+                devices = new ArrayList<>(mDevices.values());
+            }
+            write(devices);
+        }
+    };
+
+    /**
+     * Returns the process-wide store.
+     */
+    public static synchronized DeviceSnapshotStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DeviceSnapshotStore(
+                    new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param file File the snapshot is persisted in.
+     */
+    public DeviceSnapshotStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns every device in the snapshot, least recently updated first.
+     */
+    public synchronized List<DeviceSnapshot> getDevices() {
+        ensureLoaded();
+        return new ArrayList<>(mDevices.values());
+    }
+
+    /**
+     * Returns what was last known about a device, or null.
+     */
+    public synchronized DeviceSnapshot getDevice(String deviceId) {
+        ensureLoaded();
+        return mDevices.get(deviceId);
+    }
+
+    /**
+     * Records a discovered device, keeping its last known LED states.
+     * @param manifest The device's model manifest, or null to keep the last known model name.
+     */
+    public synchronized void putDevice(WeaveDevice device, ModelManifest manifest) {
+        ensureLoaded();
+        DeviceSnapshot old = mDevices.remove(device.getId());
+        String modelName = manifest != null ? manifest.getModelName()
+                : old != null ? old.modelName : null;
+        put(new DeviceSnapshot(device.getId(), device.getName(), device.getDescription(),
+                device.getModelManifestId(), modelName, TransportMonitor.routeOf(device),
+                TransportMonitor.hasCloud(device), old == null ? null : old.leds));
+    }
+
+    /**
+     * Records the confirmed LED states of a device already in the snapshot.
+     */
+    public synchronized void putLedStates(String deviceId, LedStates leds) {
+        ensureLoaded();
+        DeviceSnapshot old = mDevices.remove(deviceId);
+        if (old == null) {
+            return;
+        }
+        put(new DeviceSnapshot(old.id, old.name, old.description, old.modelManifestId,
+                old.modelName, old.transport, old.hasCloud, new LedStates(leds)));
+    }
+
+    /**
+     * Drops a device that is no longer around.
+     */
+    public synchronized void removeDevice(String deviceId) {
+        ensureLoaded();
+        if (mDevices.remove(deviceId) != null) {
+            scheduleSave();
+        }
+    }
+
+    private void put(DeviceSnapshot snapshot) {
+        mDevices.put(snapshot.id, snapshot);
+        if (mDevices.size() > MAX_DEVICES) {
+            mDevices.remove(mDevices.keySet().iterator().next());
+        }
+        scheduleSave();
+    }
+
+    private void scheduleSave() {
+        if (!mSaveScheduled) {
+            mSaveScheduled = true;
+            // Changes usually come in bursts, as devices are discovered; one write covers them.
+            mHandler.postDelayed(mPostSave, SAVE_DELAY_MS);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mDevices == null) {
+            mDevices = new LinkedHashMap<>();
+            for (DeviceSnapshot snapshot : read()) {
+                mDevices.put(snapshot.id, snapshot);
+            }
+        }
+    }
+
+    private List<DeviceSnapshot> read() {
+        ArrayList<DeviceSnapshot> devices = new ArrayList<>();
+        synchronized (mFileLock) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                int version = in.readInt() == MAGIC ? in.readInt() : -1;
+                if (version != VERSION) {
+                    Log.w(TAG, "Discarding snapshot of unknown format");
+                    return devices;
+                }
+                int count = in.readInt();
+                if (count < 0 || count > MAX_DEVICES) {
+                    throw new IOException("Bad device count " + count);
+                }
+                for (int i = 0; i < count; i++) {
+                    devices.add(readDevice(in));
+                }
+                Log.i(TAG, "Read snapshot of " + count + " devices");
+            } catch (FileNotFoundException e) {
+                // No snapshot yet.
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable snapshot", e);
+                devices.clear();
+                mFile.delete();
+            } finally {
+                close(in);
+            }
+        }
+        return devices;
+    }
+
+    private void write(List<DeviceSnapshot> devices) {
+        synchronized (mFileLock) {
+            // Written aside and renamed, so a crash mid-write never leaves a truncated snapshot.
+            File temp = new File(mFile.getPath() + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(devices.size());
+                for (DeviceSnapshot snapshot : devices) {
+                    writeDevice(out, snapshot);
+                }
+                out.close();
+                out = null;
+                if (!temp.renameTo(mFile)) {
+                    throw new IOException("Could not rename " + temp + " to " + mFile);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write snapshot", e);
+                temp.delete();
+            } finally {
+                close(out);
+            }
+        }
+    }
+
+    private static DeviceSnapshot readDevice(DataInputStream in) throws IOException {
+        String id = in.readUTF();
+        String name = readString(in);
+        String description = readString(in);
+        String modelManifestId = readString(in);
+        String modelName = readString(in);
+        int transport = in.readByte();
+        boolean hasCloud = in.readBoolean();
+        int ledCount = in.readInt();
+        // -1 means the LED states were never read.
+        if (ledCount < -1 || ledCount > MAX_LEDS) {
+            throw new IOException("Bad LED count " + ledCount);
+        }
+        LedStates leds = null;
+        if (ledCount >= 0) {
+            leds = new LedStates(ledCount);
+            // Eight LEDs per byte, lowest index in the lowest bit.
+            for (int i = 0; i < ledCount; i += 8) {
+                int bits = in.readUnsignedByte();
+                for (int bit = 0; bit < 8 && i + bit < ledCount; bit++) {
+                    leds.set(i + bit, (bits & (1 << bit)) != 0);
+                }
+            }
+        }
+        return new DeviceSnapshot(id, name, description, modelManifestId, modelName, transport,
+                hasCloud, leds);
+    }
+
+    private static void writeDevice(DataOutputStream out, DeviceSnapshot snapshot)
+            throws IOException {
+        out.writeUTF(snapshot.id);
+        writeString(out, snapshot.name);
+        writeString(out, snapshot.description);
+        writeString(out, snapshot.modelManifestId);
+        writeString(out, snapshot.modelName);
+        out.writeByte(snapshot.transport);
+        out.writeBoolean(snapshot.hasCloud);
+        LedStates leds = snapshot.leds;
+        if (leds == null) {
+            out.writeInt(-1);
+            return;
+        }
+        int ledCount = leds.size();
+        out.writeInt(ledCount);
+        for (int i = 0; i < ledCount; i += 8) {
+            int bits = 0;
+            for (int bit = 0; bit < 8 && i + bit < ledCount; bit++) {
+                if (leds.isOn(i + bit)) {
+                    bits |= 1 << bit;
+                }
+            }
+            out.writeByte(bits);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing left to do.
+            }
+        }
+    }
+}
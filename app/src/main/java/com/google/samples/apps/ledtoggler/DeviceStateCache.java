@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.apps.weave.apis.data.DeviceState;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of the LED states last read from each device, so screens showing a device
+ * don't have to wait on a state read the app made moments ago.
+ *
+ * Entries younger than the freshness window are shown as they are. Older entries are shown
+ * right away too, while the state is read again in the background; reads of the same device
+ * are collapsed, so at most one is in flight per device. Commands confirmed by the device update
+ * the cached states in place, and reads that started before them don't overwrite the update.
+ * The number of devices kept is bounded, least recently used first.
+ *
+ * Lookups and updates are thread-safe; {@link #load} and {@link #refresh} must be called from
+ * the main thread.
+ */
+public class DeviceStateCache {
+    private static final String TAG = DeviceStateCache.class.getSimpleName();
+
+    /** Default age up to which cached states are shown without being read again. */
+    public static final long DEFAULT_FRESHNESS_MS = 5000;
+    /** Default number of devices whose states are kept. */
+    public static final int DEFAULT_MAX_DEVICES = 64;
+
+    private static DeviceStateCache sInstance;
+
+    /**
+     * The LED states of a device, and when they were read.
+     */
+    public static class Entry {
+        /** Must not be modified. */
+        public final LedStates states;
+        /** {@link SystemClock#elapsedRealtime()} when the states were read. */
+        public final long readAtMs;
+        /** Whether the states were read ahead of time, before anything asked for them. */
+        public final boolean prefetched;
+        private final long mFreshnessMs;
+        // Taken from the cache's change counter when the entry was written.
+        private final long mVersion;
+
+        Entry(LedStates states, long readAtMs, boolean prefetched, long freshnessMs,
+                long version) {
+            this.states = states;
+            this.readAtMs = readAtMs;
+            this.prefetched = prefetched;
+            mFreshnessMs = freshnessMs;
+            mVersion = version;
+        }
+
+        /** Whether the states are recent enough to be shown without reading them again. */
+        public boolean isFresh() {
+            return SystemClock.elapsedRealtime() - readAtMs <= mFreshnessMs;
+        }
+    }
+
+    /**
+     * Receives the outcome of a state read on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param result The response of the read.
+         * @param states The LED states read, or null if the read failed or the device has no
+         *               {@link LedFlasher#TRAIT} state. Must not be modified.
+         */
+        void onStateRead(Response<DeviceState> result, LedStates states);
+    }
+
+    /** A state read in flight, and the callbacks waiting on it. */
+    private static class Read {
+        final ArrayList<Callback> callbacks = new ArrayList<>();
+        // Callbacks that asked for a read starting after this one; read once it finishes.
+        ArrayList<Callback> followUp;
+    }
+
+    private final long mFreshnessMs;
+    private final LruCache<String, Entry> mEntries;
+    // Reads in flight by device id. Only touched on the main thread.
+    private final HashMap<String, Read> mReads = new HashMap<>();
+    // Incremented on every write, so a read can tell whether its entry changed while it ran.
+    private final AtomicLong mVersion = new AtomicLong();
+
+    private final AtomicLong mFreshHits = new AtomicLong();
+    private final AtomicLong mStaleHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mPrefetchHits = new AtomicLong();
+    private long mReadsStarted;
+    private long mReadsCollapsed;
+    private long mPrefetches;
+
+    /**
+     * Returns the process-wide cache with the default freshness window and size.
+     */
+    public static synchronized DeviceStateCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new DeviceStateCache(DEFAULT_FRESHNESS_MS, DEFAULT_MAX_DEVICES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param freshnessMs Age up to which cached states are shown without being read again.
+     * @param maxDevices Number of devices whose states are kept.
+     */
+    public DeviceStateCache(long freshnessMs, int maxDevices) {
+        mFreshnessMs = freshnessMs;
+        mEntries = new LruCache<String, Entry>(maxDevices) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue,
+                    Entry newValue) {
+                if (evicted) {
+                    mEvictions.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the cached states of a device, or null. Doesn't count towards the hit rate.
+     */
+    public Entry peek(String deviceId) {
+        return mEntries.get(deviceId);
+    }
+
+    /**
+     * Returns the cached states of a device right away, and reads them again unless they are
+     * fresh. The callback is only called if a read is made, or one was already in flight.
+     * @param priority Scheduler lane a new read is made in.
+     * @return the cached entry, fresh or not, or null if the device's states aren't cached.
+     */
+    public Entry load(WeaveApiClient apiClient, WeaveDevice device, int priority,
+            Callback callback) {
+        Entry entry = mEntries.get(device.getId());
+        if (entry == null) {
+            mMisses.incrementAndGet();
+        } else if (entry.isFresh()) {
+            mFreshHits.incrementAndGet();
+            if (entry.prefetched) {
+                mPrefetchHits.incrementAndGet();
+            }
+            return entry;
+        } else {
+            mStaleHits.incrementAndGet();
+        }
+        Read read = mReads.get(device.getId());
+        if (read != null) {
+            mReadsCollapsed++;
+            read.callbacks.add(callback);
+        } else {
+            startRead(apiClient, device, priority, false).callbacks.add(callback);
+        }
+        return entry;
+    }
+
+    /**
+     * Reads the states of a device, whatever is cached. The read starts after this call, so it
+     * reflects changes made before; if another read is in flight, this one is made once it
+     * finishes, and shared with other refreshes requested meanwhile.
+     */
+    public void refresh(final WeaveApiClient apiClient, final WeaveDevice device,
+            final int priority, Callback callback) {
+        Read read = mReads.get(device.getId());
+        if (read == null) {
+            startRead(apiClient, device, priority, false).callbacks.add(callback);
+            return;
+        }
+        if (read.followUp == null) {
+            read.followUp = new ArrayList<>();
+        } else {
+            mReadsCollapsed++;
+        }
+        read.followUp.add(callback);
+    }
+
+    /**
+     * Reads the states of a device in the background lane, ahead of anything asking for them,
+     * unless they are fresh or already being read. Doesn't count towards the hit rate.
+     * @return whether a read was started. If so, the callback is called once it finishes.
+     */
+    public boolean prefetch(WeaveApiClient apiClient, WeaveDevice device, Callback callback) {
+        Entry entry = mEntries.get(device.getId());
+        if ((entry != null && entry.isFresh()) || mReads.containsKey(device.getId())) {
+            return false;
+        }
+        mPrefetches++;
+        startRead(apiClient, device, WeaveScheduler.PRIORITY_BACKGROUND, true).callbacks
+                .add(callback);
+        return true;
+    }
+
+    /**
+     * Records states read from a device outside the cache.
+     */
+    public void put(String deviceId, LedStates states) {
+        put(deviceId, new LedStates(states), false, Long.MAX_VALUE);
+    }
+
+    /**
+     * Records states read from a device, unless its entry was written after the read started,
+     * such as by a confirmed command the read may predate.
+     * @param readStartedVersion Value of the change counter when the read started.
+     */
+    private void put(String deviceId, LedStates states, boolean prefetched,
+            long readStartedVersion) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(deviceId);
+            if (entry != null && entry.mVersion > readStartedVersion) {
+                return;
+            }
+            mEntries.put(deviceId, new Entry(states, SystemClock.elapsedRealtime(), prefetched,
+                    mFreshnessMs, mVersion.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Records an LED change the device confirmed, keeping the rest of its cached states.
+     */
+    public void putLed(String deviceId, int ledIndex, boolean lightOn) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(deviceId);
+            if (entry == null || ledIndex >= entry.states.size()
+                    || entry.states.isOn(ledIndex) == lightOn) {
+                return;
+            }
+            LedStates states = new LedStates(entry.states);
+            states.set(ledIndex, lightOn);
+            mEntries.put(deviceId, new Entry(states, entry.readAtMs, entry.prefetched,
+                    mFreshnessMs, mVersion.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Drops the cached states of a device that was changed in ways the cache can't follow.
+     */
+    public void invalidate(String deviceId) {
+        mEntries.remove(deviceId);
+    }
+
+    private Read startRead(final WeaveApiClient apiClient, final WeaveDevice device,
+            final int priority, final boolean prefetch) {
+        final String deviceId = device.getId();
+        final Read read = new Read();
+        mReads.put(deviceId, read);
+        mReadsStarted++;
+        // Network call, punt off the main thread.
+        new AsyncTask<Void, Void, Response<DeviceState>>() {
+            private LedStates mStates;
+
+            @Override
+            protected Response<DeviceState> doInBackground(Void... params) {
+                long startedVersion = mVersion.get();
+                Response<DeviceState> result = WeaveGateway.getInstance().getState(apiClient,
+                        device);
+                if (result != null && result.isSuccess() && result.getError() == null) {
+                    LedStates states = new LedStates();
+                    if (LedFlasher.decodeState(
+                            result.getSuccess().getStateValue(LedFlasher.TRAIT), states)) {
+                        put(deviceId, states, prefetch, startedVersion);
+                        mStates = states;
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            protected void onPostExecute(Response<DeviceState> result) {
+                mReads.remove(deviceId);
+                if (read.followUp != null) {
+                    startRead(apiClient, device, priority, false).callbacks
+                            .addAll(read.followUp);
+                }
+                for (Callback callback : read.callbacks) {
+                    callback.onStateRead(result, mStates);
+                }
+            }
+        }.executeOnExecutor(WeaveScheduler.getInstance().executor(priority));
+        return read;
+    }
+
+    /** Returns the fraction of lookups served from a fresh entry, between 0 and 1. */
+    public float getHitRate() {
+        long lookups = mFreshHits.get() + mStaleHits.get() + mMisses.get();
+        return lookups == 0 ? 0 : (float) mFreshHits.get() / lookups;
+    }
+
+    /** Returns a one-line summary of the cache counters. */
+    public String describe() {
+        return mEntries.size() + " devices, fresh hits " + mFreshHits + ", stale hits "
+                + mStaleHits + ", misses " + mMisses + ", hit rate "
+                + Math.round(getHitRate() * 100) + "%, reads " + mReadsStarted
+                + ", collapsed " + mReadsCollapsed + ", prefetches " + mPrefetches
+                + " (" + mPrefetchHits + " used), evictions " + mEvictions;
+    }
+
+    /** Logs the cache counters. */
+    public void logStats() {
+        Log.i(TAG, describe());
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.data.EventResult;
+import com.google.android.apps.weave.apis.data.EventResultList;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+
+import java.util.List;
+
+/**
+ * Watches a device for changes made elsewhere, by other users or by the board itself, while
+ * started. Devices registered with the cloud are watched through their event feed, which is
+ * small and cheap to fetch; the full device state is only re-read when a new event shows up.
+ * Devices without cloud events (LAN-only devices, or when the feed keeps failing) have to be
+ * polled instead, see {@link LedStatePoller}.
+ *
+ * All methods must be called from the main thread.
+ */
+public class DeviceStateWatcher {
+    private static final String TAG = DeviceStateWatcher.class.getSimpleName();
+
+    /** How often the event feed is checked for new events. */
+    private static final long EVENT_CHECK_INTERVAL_MS = 5000;
+    /** Consecutive event feed failures after which events are considered unavailable. */
+    private static final int MAX_EVENT_FAILURES = 3;
+
+    /**
+     * Notified on the main thread of changes to the watched device.
+     */
+    public interface Listener {
+        /** The device's state may have changed and should be re-read. */
+        void onDeviceStateChanged();
+
+        /** The event feed can't be used; the watcher has stopped and the caller should poll. */
+        void onEventsUnavailable();
+    }
+
+    private final WeaveApiClient mApiClient;
+    private final WeaveDevice mDevice;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler();
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    private boolean mStarted;
+    private boolean mUseEvents;
+    private boolean mCheckInFlight;
+    // Incremented on every start, so results of checks issued before a stop are ignored.
+    private int mGeneration;
+    private int mEventFailures;
+    // Time of the newest event seen, or -1 until the first check has set the baseline.
+    private long mLastEventTimeMs = -1;
+
+    private long mEventChecks;
+    private long mEventsSeen;
+    private long mChangesReported;
+
+    public DeviceStateWatcher(WeaveApiClient apiClient, WeaveDevice device, Listener listener) {
+        mApiClient = apiClient;
+        mDevice = device;
+        mListener = listener;
+        mUseEvents = device.getDiscoveryTransport() != null
+                && device.getDiscoveryTransport().hasCloud();
+    }
+
+    /**
+     * Starts watching. The caller is expected to have read the current state itself; the
+     * listener is only notified of changes from here on. Does nothing if events aren't
+     * available, see {@link #isUsingEvents()}.
+     */
+    public void start() {
+        if (mStarted || !mUseEvents) {
+            return;
+        }
+        mStarted = true;
+        mGeneration++;
+        mCheckInFlight = false;
+        // Set the baseline right away, so events that happen soon after are picked up.
+        tick();
+    }
+
+    /** Stops watching, e.g. when the device's state is no longer visible. */
+    public void stop() {
+        mStarted = false;
+        mHandler.removeCallbacks(mTick);
+    }
+
+    /** Whether changes are detected through the event feed rather than by polling. */
+    public boolean isUsingEvents() {
+        return mUseEvents;
+    }
+
+    private void tick() {
+        if (!mStarted) {
+            return;
+        }
+        if (!mCheckInFlight) {
+            checkEvents();
+        }
+        mHandler.postDelayed(mTick, EVENT_CHECK_INTERVAL_MS);
+    }
+
+    private void checkEvents() {
+        mCheckInFlight = true;
+        mEventChecks++;
+        final int generation = mGeneration;
+        final String deviceId = mDevice.getId();
+        // Network call, punt off the main thread.
+        new AsyncTask<Void, Void, Response<EventResultList>>() {
+            @Override
+            protected Response<EventResultList> doInBackground(Void... params) {
+                return WeaveGateway.getInstance().getEvents(mApiClient, deviceId);
+            }
+
+            @Override
+            protected void onPostExecute(Response<EventResultList> result) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mCheckInFlight = false;
+                if (!mStarted) {
+                    return;
+                }
+                if (result == null || !result.isSuccess() || result.getError() != null) {
+                    onEventCheckFailed(result);
+                } else {
+                    mEventFailures = 0;
+                    onEvents(result.getSuccess().getEventResults());
+                }
+            }
+        }.executeOnExecutor(WeaveScheduler.getInstance()
+                .executor(WeaveScheduler.PRIORITY_BACKGROUND));
+    }
+
+    private void onEvents(List<EventResult> events) {
+        long newest = mLastEventTimeMs;
+        int newEvents = 0;
+        if (events != null) {
+            for (EventResult event : events) {
+                if (event.getTimeMs() > mLastEventTimeMs) {
+                    newEvents++;
+                    newest = Math.max(newest, event.getTimeMs());
+                }
+            }
+        }
+        if (mLastEventTimeMs < 0) {
+            // First check: everything in the feed predates the state the caller already read.
+            mLastEventTimeMs = Math.max(newest, 0);
+            return;
+        }
+        mLastEventTimeMs = newest;
+        if (newEvents > 0) {
+            mEventsSeen += newEvents;
+            reportChange();
+        }
+    }
+
+    private void onEventCheckFailed(Response<EventResultList> result) {
+        mEventFailures++;
+        Log.e(TAG, "Failure checking events: " + (result == null ? null : result.getError()));
+        if (mEventFailures >= MAX_EVENT_FAILURES) {
+            Log.i(TAG, "Events unavailable for " + mDevice.getId() + ", polling instead.");
+            mUseEvents = false;
+            stop();
+            mListener.onEventsUnavailable();
+        } else {
+            // Changes may have been missed while the feed was failing.
+            reportChange();
+        }
+    }
+
+    private void reportChange() {
+        mChangesReported++;
+        mListener.onDeviceStateChanged();
+    }
+
+    /** Logs how changes were detected so far. */
+    public void logStats() {
+        Log.i(TAG, "State watcher using events: " + mUseEvents + ", event checks: "
+                + mEventChecks + ", events seen: " + mEventsSeen + ", state reads: "
+                + mChangesReported);
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.device.DeviceLoaderCallbacks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs device discovery while the app is in the foreground, and turns the raw found/lost
+ * callbacks into a steadier stream of device changes.
+ *
+ * Discovery is battery intensive, so it only scans continuously for a while after
+ * {@link #start()} or the last {@link #onUserActivity()}. After that it alternates short scans
+ * with longer pauses, and it stops scanning altogether on {@link #stop()}.
+ *
+ * Devices on a flaky network tend to be lost and found again within seconds. A lost device is
+ * only reported after a grace period, and only if it hasn't been found again meanwhile. Devices
+ * found again while already present are only reported if their details changed.
+ *
+ * All methods must be called from the main thread.
+ */
+public class DiscoveryController {
+    private static final String TAG = DiscoveryController.class.getSimpleName();
+
+    /** How long discovery scans continuously after a start or a user interaction. */
+    public static final long ACTIVE_PERIOD_MS = 30000;
+    /** Length of each scan once the user has been idle for {@link #ACTIVE_PERIOD_MS}. */
+    public static final long IDLE_SCAN_MS = 5000;
+    /** Pause between scans once the user has been idle. */
+    public static final long IDLE_PAUSE_MS = 25000;
+    /** How long a lost device is kept, in case it is found again. */
+    public static final long LOST_GRACE_MS = 10000;
+
+    /**
+     * Notified on the main thread of devices coming and going.
+     */
+    public interface Listener {
+        /** The device was found, or its details changed since it was last reported. */
+        void onDeviceFound(WeaveDevice device);
+
+        /** The device has been gone for the whole grace period. */
+        void onDeviceLost(WeaveDevice device);
+    }
+
+    private final WeaveApiClient mApiClient;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler();
+
+    // Devices reported found and not lost since, and when each was last seen by a scan.
+    private final HashMap<String, WeaveDevice> mPresent = new HashMap<>();
+    private final HashMap<String, Long> mLastSeenMs = new HashMap<>();
+    private final HashMap<String, Runnable> mPendingLosses = new HashMap<>();
+
+    private boolean mForeground;
+    private boolean mScanning;
+    private long mLastActivityMs;
+    private long mScanStartedMs;
+    private long mScanStoppedMs;
+    private long mForegroundStartedMs;
+
+    private long mScanTimeMs;
+    private long mForegroundTimeMs;
+    private long mScans;
+    private long mRawFound;
+    private long mRawLost;
+    private long mReportedFound;
+    private long mReportedLost;
+    private long mDuplicatesSuppressed;
+    private long mFlapsSuppressed;
+    private long mSweptLost;
+
+    private final Runnable mDutyCycle = new Runnable() {
+        @Override
+        public void run() {
+            updateScanning();
+        }
+    };
+
+    private final DeviceLoaderCallbacks mCallbacks = new DeviceLoaderCallbacks() {
+        @Override
+        public void onDevicesFound(WeaveDevice[] weaveDevices) {
+            for (WeaveDevice device : weaveDevices) {
+                onFound(device);
+            }
+        }
+
+        @Override
+        public void onDevicesLost(WeaveDevice[] weaveDevices) {
+            for (WeaveDevice device : weaveDevices) {
+                onLost(device);
+            }
+        }
+    };
+
+    public DiscoveryController(WeaveApiClient apiClient, Listener listener) {
+        mApiClient = apiClient;
+        mListener = listener;
+    }
+
+    /**
+     * Starts discovery, scanning continuously for {@link #ACTIVE_PERIOD_MS}. Call when the
+     * device list becomes visible.
+     */
+    public void start() {
+        if (mForeground) {
+            return;
+        }
+        mForeground = true;
+        long now = SystemClock.elapsedRealtime();
+        mForegroundStartedMs = now;
+        mLastActivityMs = now;
+        updateScanning();
+    }
+
+    /**
+     * Stops scanning until the next {@link #start()}. Losses already pending are still reported.
+     */
+    public void stop() {
+        if (!mForeground) {
+            return;
+        }
+        mForeground = false;
+        mForegroundTimeMs += SystemClock.elapsedRealtime() - mForegroundStartedMs;
+        updateScanning();
+    }
+
+    /**
+     * Stops scanning and drops pending losses. Call when the listener goes away for good.
+     */
+    public void release() {
+        stop();
+        mHandler.removeCallbacksAndMessages(null);
+        mPendingLosses.clear();
+    }
+
+    /**
+     * Goes back to scanning continuously, since the user is likely looking for devices.
+     */
+    public void onUserActivity() {
+        mLastActivityMs = SystemClock.elapsedRealtime();
+        if (mForeground && !mScanning) {
+            updateScanning();
+        }
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    private void updateScanning() {
+        mHandler.removeCallbacks(mDutyCycle);
+        if (!mForeground) {
+            setScanning(false);
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long activeUntilMs = mLastActivityMs + ACTIVE_PERIOD_MS;
+        if (now < activeUntilMs) {
+            setScanning(true);
+            mHandler.postDelayed(mDutyCycle, activeUntilMs - now);
+        } else if (mScanning) {
+            long scannedMs = now - mScanStartedMs;
+            if (scannedMs < IDLE_SCAN_MS) {
+                mHandler.postDelayed(mDutyCycle, IDLE_SCAN_MS - scannedMs);
+            } else {
+                setScanning(false);
+                mHandler.postDelayed(mDutyCycle, IDLE_PAUSE_MS);
+            }
+        } else {
+            long pausedMs = now - mScanStoppedMs;
+            if (pausedMs < IDLE_PAUSE_MS) {
+                mHandler.postDelayed(mDutyCycle, IDLE_PAUSE_MS - pausedMs);
+            } else {
+                setScanning(true);
+                mHandler.postDelayed(mDutyCycle, IDLE_SCAN_MS);
+            }
+        }
+    }
+
+    private void setScanning(boolean scanning) {
+        if (scanning == mScanning) {
+            return;
+        }
+        mScanning = scanning;
+        long now = SystemClock.elapsedRealtime();
+        if (scanning) {
+            mScans++;
+            mScanStartedMs = now;
+            WeaveGateway.getInstance().startDiscovery(mApiClient, mCallbacks);
+        } else {
+            mScanStoppedMs = now;
+            mScanTimeMs += now - mScanStartedMs;
+            WeaveGateway.getInstance().stopDiscovery(mApiClient, mCallbacks);
+            sweep(now - mScanStartedMs);
+        }
+    }
+
+    /**
+     * Devices that disappear while discovery is paused are never reported lost, since a new
+     * scan doesn't know about them. Every present device is found again by a scan that lasts
+     * long enough, so those that weren't are treated as lost.
+     */
+    private void sweep(long scannedMs) {
+        if (scannedMs < IDLE_SCAN_MS) {
+            return;
+        }
+        ArrayList<WeaveDevice> unseen = new ArrayList<>();
+        for (Map.Entry<String, WeaveDevice> entry : mPresent.entrySet()) {
+            Long lastSeenMs = mLastSeenMs.get(entry.getKey());
+            if (lastSeenMs == null || lastSeenMs < mScanStartedMs) {
+                unseen.add(entry.getValue());
+            }
+        }
+        for (WeaveDevice device : unseen) {
+            if (!mPendingLosses.containsKey(device.getId())) {
+                mSweptLost++;
+                scheduleLoss(device);
+            }
+        }
+    }
+
+    private void onFound(WeaveDevice device) {
+        mRawFound++;
+        String id = device.getId();
+        mLastSeenMs.put(id, SystemClock.elapsedRealtime());
+        Runnable pendingLoss = mPendingLosses.remove(id);
+        if (pendingLoss != null) {
+            mHandler.removeCallbacks(pendingLoss);
+            mFlapsSuppressed++;
+        }
+        WeaveDevice present = mPresent.put(id, device);
+        if (present != null && sameDetails(present, device)) {
+            mDuplicatesSuppressed++;
+            return;
+        }
+        Log.i(TAG, "Found device: " + device.getName());
+        mReportedFound++;
+        mListener.onDeviceFound(device);
+    }
+
+    private void onLost(WeaveDevice device) {
+        mRawLost++;
+        if (!mPresent.containsKey(device.getId())
+                || mPendingLosses.containsKey(device.getId())) {
+            return;
+        }
+        scheduleLoss(device);
+    }
+
+    private void scheduleLoss(final WeaveDevice device) {
+        Runnable loss = new Runnable() {
+            @Override
+            public void run() {
+                String id = device.getId();
+                mPendingLosses.remove(id);
+                WeaveDevice present = mPresent.remove(id);
+                mLastSeenMs.remove(id);
+                if (present != null) {
+                    Log.i(TAG, "Lost device: " + present.getName());
+                    mReportedLost++;
+                    mListener.onDeviceLost(present);
+                }
+            }
+        };
+        mPendingLosses.put(device.getId(), loss);
+        mHandler.postDelayed(loss, LOST_GRACE_MS);
+    }
+
+    private static boolean sameDetails(WeaveDevice a, WeaveDevice b) {
+        return TextUtils.equals(a.getName(), b.getName())
+                && TextUtils.equals(a.getDescription(), b.getDescription())
+                && TextUtils.equals(a.getModelManifestId(), b.getModelManifestId())
+                && TransportMonitor.routeOf(a) == TransportMonitor.routeOf(b);
+    }
+
+    /**
+     * Returns the fraction of foreground time spent scanning so far, between 0 and 1.
+     */
+    public float getDutyRatio() {
+        long now = SystemClock.elapsedRealtime();
+        long scanMs = mScanTimeMs + (mScanning ? now - mScanStartedMs : 0);
+        long foregroundMs = mForegroundTimeMs + (mForeground ? now - mForegroundStartedMs : 0);
+        return foregroundMs == 0 ? 0 : (float) scanMs / foregroundMs;
+    }
+
+    /** Returns the number of found and lost callbacks that were not passed on. */
+    public long getSuppressedCount() {
+        return mDuplicatesSuppressed + mFlapsSuppressed;
+    }
+
+    /** Logs the scanning and churn counters. */
+    public void logStats() {
+        Log.i(TAG, "Scans: " + mScans + ", duty: " + Math.round(getDutyRatio() * 100)
+                + "%, found: " + mRawFound + " (reported " + mReportedFound + "), lost: "
+                + mRawLost + " (reported " + mReportedLost + ", swept " + mSweptLost
+                + "), duplicates suppressed: " + mDuplicatesSuppressed
+                + ", flaps suppressed: " + mFlapsSuppressed + ", present: " + mPresent.size());
+    }
+}
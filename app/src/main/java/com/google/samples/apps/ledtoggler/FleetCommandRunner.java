@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.data.Command;
+import com.google.android.apps.weave.apis.data.CommandResult;
+import com.google.android.apps.weave.apis.data.DeviceState;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Turns every LED of many devices on or off. Devices are processed on a pool of their own,
+ * a few at a time, so a large fleet neither floods the network nor holds up the
+ * {@link WeaveScheduler} lanes used by the rest of the app. Each device's state is read first,
+ * so only LEDs that actually need to change get a command. Results are reported on the main
+ * thread as each device finishes.
+ */
+public class FleetCommandRunner {
+    private static final String TAG = FleetCommandRunner.class.getSimpleName();
+
+    /** Maximum number of devices worked on at the same time. */
+    public static final int MAX_PARALLEL_DEVICES = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    /** Outcome of the fleet action for a single device. */
+    public static class DeviceResult {
+        public final WeaveDevice device;
+        /** Number of commands sent, which is the number of LEDs that had to change. */
+        public final int commandsSent;
+        /** Number of sent commands that failed. */
+        public final int commandsFailed;
+        /** Why the device failed, or null if it succeeded. */
+        public final String error;
+        public final long elapsedMs;
+
+        DeviceResult(WeaveDevice device, int commandsSent, int commandsFailed, String error,
+                long elapsedMs) {
+            this.device = device;
+            this.commandsSent = commandsSent;
+            this.commandsFailed = commandsFailed;
+            this.error = error;
+            this.elapsedMs = elapsedMs;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    /**
+     * Receives the progress of a fleet action on the main thread.
+     */
+    public interface Listener {
+        /** Called as soon as a device is done, in completion order. */
+        void onDeviceFinished(DeviceResult result, int finished, int total);
+
+        /** Called once every device is done. */
+        void onFleetFinished(int total, int failed, long wallClockMs);
+    }
+
+    private final WeaveApiClient mApiClient;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private ThreadPoolExecutor mPool;
+    // Incremented per run, so results of a cancelled run are dropped.
+    private int mRun;
+    private boolean mRunning;
+
+    public FleetCommandRunner(WeaveApiClient apiClient) {
+        mApiClient = apiClient;
+    }
+
+    /** Whether a fleet action is still in progress. Must be called from the main thread. */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Sets every LED of every given device. Must be called from the main thread; a run still in
+     * progress is cancelled first.
+     */
+    public void setAllLeds(List<WeaveDevice> devices, final boolean lightOn,
+            final Listener listener) {
+        cancel();
+        final int run = ++mRun;
+        final int total = devices.size();
+        final long startMs = SystemClock.elapsedRealtime();
+        if (total == 0) {
+            listener.onFleetFinished(0, 0, 0);
+            return;
+        }
+        mRunning = true;
+        mPool = newPool();
+        final int[] finished = new int[1];
+        final int[] failed = new int[1];
+        for (final WeaveDevice device : devices) {
+            mPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final DeviceResult result = setDeviceLeds(device, lightOn);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (run != mRun) {
+                                return;
+                            }
+                            finished[0]++;
+                            if (!result.isSuccess()) {
+                                failed[0]++;
+                            }
+                            listener.onDeviceFinished(result, finished[0], total);
+                            if (finished[0] == total) {
+                                long wallClockMs = SystemClock.elapsedRealtime() - startMs;
+                                Log.i(TAG, "Fleet action on " + total + " devices took "
+                                        + wallClockMs + "ms, " + failed[0] + " failed");
+                                mRunning = false;
+                                mPool.shutdown();
+                                listener.onFleetFinished(total, failed[0], wallClockMs);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops a run in progress. Devices already being worked on finish their current command,
+     * but no further results are reported. Must be called from the main thread.
+     */
+    public void cancel() {
+        mRun++;
+        mRunning = false;
+        if (mPool != null) {
+            mPool.shutdownNow();
+            mPool = null;
+        }
+    }
+
+    /**
+     * Reads the device's LED states and sends a command for every LED that differs. Runs on a
+     * pool thread.
+     */
+    private DeviceResult setDeviceLeds(WeaveDevice device, boolean lightOn) {
+        WeaveGateway gateway = WeaveGateway.getInstance();
+        long startMs = SystemClock.elapsedRealtime();
+        Response<DeviceState> state = gateway.getState(mApiClient, device);
+        if (state == null || !state.isSuccess() || state.getError() != null) {
+            return new DeviceResult(device, 0, 0,
+                    "state read failed: " + (state == null ? null : state.getError()),
+                    SystemClock.elapsedRealtime() - startMs);
+        }
+        LedStates current = new LedStates();
+        if (!LedFlasher.decodeState(state.getSuccess().getStateValue(LedFlasher.TRAIT),
+                current)) {
+            return new DeviceResult(device, 0, 0, "no " + LedFlasher.TRAIT + " state",
+                    SystemClock.elapsedRealtime() - startMs);
+        }
+        LedStates desired = new LedStates(current.size());
+        desired.setAll(lightOn);
+        List<Command> commands = new ArrayList<>(current.size());
+        LedFlasher.appendSetCommands(current, desired, commands);
+
+        int failed = 0;
+        String error = null;
+        for (Command command : commands) {
+            if (Thread.currentThread().isInterrupted()) {
+                error = "cancelled";
+                break;
+            }
+            // Ordered against toggles of the same LEDs the user makes meanwhile.
+            Response<CommandResult> result = CommandPipeline.getInstance().execute(mApiClient,
+                    device, command);
+            if (result == null || !result.isSuccess() || result.getError() != null
+                    || LedFlasher.isCommandFailed(result.getSuccess())) {
+                failed++;
+                error = "command failed: " + (result == null ? null : result.getError());
+            }
+        }
+        // Commands may be applied later, or not at all; the next read will tell.
+        DeviceStateCache.getInstance().invalidate(device.getId());
+        return new DeviceResult(device, commands.size(), failed, error,
+                SystemClock.elapsedRealtime() - startMs);
+    }
+
+    private static ThreadPoolExecutor newPool() {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_PARALLEL_DEVICES,
+                MAX_PARALLEL_DEVICES, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "weave-fleet-" + count.incrementAndGet());
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
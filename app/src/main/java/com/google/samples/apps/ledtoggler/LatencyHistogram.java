@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of latencies in milliseconds. Buckets grow geometrically by 25%, so
+ * percentiles are accurate to within a quarter of their value from 1 ms up to two minutes,
+ * in constant memory. Recording is lock-free and safe from any thread.
+ *
+ * Has no Android dependencies.
+ */
+public final class LatencyHistogram {
+    private static final double BUCKET_GROWTH = 1.25;
+    private static final long MAX_TRACKED_MS = 120000;
+
+    /** Inclusive upper bound of every bucket; the last bucket also takes anything larger. */
+    private static final long[] BUCKET_LIMITS_MS = createBucketLimits();
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_LIMITS_MS.length);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumMs = new AtomicLong();
+    private final AtomicLong mMaxMs = new AtomicLong();
+
+    private static long[] createBucketLimits() {
+        long[] limits = new long[64];
+        int size = 0;
+        double limit = 1;
+        long last = -1;
+        while (last < MAX_TRACKED_MS) {
+            long rounded = Math.min((long) Math.ceil(limit), MAX_TRACKED_MS);
+            if (rounded != last) {
+                limits[size++] = rounded;
+                last = rounded;
+            }
+            limit *= BUCKET_GROWTH;
+        }
+        return Arrays.copyOf(limits, size);
+    }
+
+    public void record(long latencyMs) {
+        if (latencyMs < 0) {
+            latencyMs = 0;
+        }
+        int bucket = Arrays.binarySearch(BUCKET_LIMITS_MS, latencyMs);
+        if (bucket < 0) {
+            bucket = Math.min(-bucket - 1, BUCKET_LIMITS_MS.length - 1);
+        }
+        mCounts.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSumMs.addAndGet(latencyMs);
+        long max = mMaxMs.get();
+        while (latencyMs > max && !mMaxMs.compareAndSet(max, latencyMs)) {
+            max = mMaxMs.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxMs() {
+        return mMaxMs.get();
+    }
+
+    public long getMeanMs() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSumMs.get() / count;
+    }
+
+    /**
+     * Returns the latency below which the given fraction of recorded samples fall, rounded up
+     * to its bucket's limit, or 0 if nothing was recorded.
+     * @param fraction Between 0 and 1, e.g. 0.95 for the 95th percentile.
+     */
+    public long getPercentileMs(double fraction) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_LIMITS_MS.length; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(BUCKET_LIMITS_MS[i], mMaxMs.get());
+            }
+        }
+        return mMaxMs.get();
+    }
+}
@@ -15,11 +15,12 @@
  */
 package com.google.samples.apps.ledtoggler;
 
-import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 
@@ -29,22 +30,33 @@ import com.google.android.apps.weave.apis.data.WeaveDevice;
  * Show controls to enable or disable LEDs on a given {@link WeaveDevice}.
  */
 public class LedActivity extends AppCompatActivity implements WeaveDeviceProvider {
+    private static final String TAG = LedActivity.class.getSimpleName();
 
-    public static final String EXTRA_KEY_WEAVE_DEVICE = BuildConfig.APPLICATION_ID + ".weave_device";
+    /** Id of the device to show, looked up in the {@link DeviceRegistry}. */
+    public static final String EXTRA_KEY_DEVICE_ID = BuildConfig.APPLICATION_ID + ".device_id";
 
     private WeaveDevice mDevice;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
+        String deviceId = getIntent().getStringExtra(EXTRA_KEY_DEVICE_ID);
+        mDevice = deviceId == null ? null : DeviceRegistry.getInstance().get(deviceId);
+        // The fragment can't start without its device, so it isn't restored while the device is
+        // still being loaded from its snapshot.
+        super.onCreate(mDevice == null ? null : savedInstanceState);
 
-        setContentView(R.layout.activity_leds);
-
-        mDevice = getDeviceFromIntent(getIntent());
-        if (mDevice == null) {
-            throw new IllegalArgumentException("No WeaveDevice set in intent extra " +
-                    EXTRA_KEY_WEAVE_DEVICE);
+        if (deviceId == null) {
+            Log.e(TAG, "No device in intent extra " + EXTRA_KEY_DEVICE_ID);
+            finish();
+        } else if (mDevice != null) {
+            showDevice();
+        } else {
+            loadSnapshot(deviceId);
         }
+    }
+
+    private void showDevice() {
+        setContentView(R.layout.activity_leds);
 
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         toolbar.inflateMenu(R.menu.menu_leds);
@@ -54,13 +66,41 @@ public class LedActivity extends AppCompatActivity implements WeaveDeviceProvide
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
     }
 
-    private WeaveDevice getDeviceFromIntent(Intent intent) {
-        return intent.getParcelableExtra(EXTRA_KEY_WEAVE_DEVICE);
+    /**
+     * Restores a device that isn't discovered in this process, such as after the process was
+     * restarted, from its last known snapshot, then shows it.
+     */
+    private void loadSnapshot(final String deviceId) {
+        new AsyncTask<Void, Void, WeaveDevice>() {
+            @Override
+            protected WeaveDevice doInBackground(Void... params) {
+                DeviceSnapshotStore.DeviceSnapshot snapshot =
+                        DeviceSnapshotStore.getInstance(LedActivity.this).getDevice(deviceId);
+                return snapshot == null ? null : snapshot.toDevice();
+            }
+
+            @Override
+            protected void onPostExecute(WeaveDevice device) {
+                if (isFinishing() || isChangingConfigurations()) {
+                    // The activity that replaces this one loads the device again.
+                    return;
+                }
+                if (device == null) {
+                    Log.e(TAG, "Unknown device in intent extra " + EXTRA_KEY_DEVICE_ID);
+                    finish();
+                    return;
+                }
+                mDevice = device;
+                showDevice();
+            }
+        }.executeOnExecutor(WeaveScheduler.getInstance()
+                .executor(WeaveScheduler.PRIORITY_STATE));
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_leds, menu);
+        DebugActivity.prepareMenu(menu);
         return true;
     }
 
@@ -71,9 +111,23 @@ public class LedActivity extends AppCompatActivity implements WeaveDeviceProvide
                 new LicenseDialog().show(getSupportFragmentManager(), "Show licenses");
                 return true;
             case R.id.action_refresh:
-                LedSwitchesFragment fragment = (LedSwitchesFragment) getSupportFragmentManager()
-                        .findFragmentById(R.id.led_fragment);
-                fragment.updateLightStates();
+                getLedFragment().refreshLightStates();
+                return true;
+            case R.id.action_pattern_blink:
+                getLedFragment().startPattern(LedPatternEngine.BLINK, R.string.menu_pattern_blink);
+                return true;
+            case R.id.action_pattern_chase:
+                getLedFragment().startPattern(LedPatternEngine.CHASE, R.string.menu_pattern_chase);
+                return true;
+            case R.id.action_pattern_progress:
+                getLedFragment().startPattern(LedPatternEngine.PROGRESS,
+                        R.string.menu_pattern_progress);
+                return true;
+            case R.id.action_pattern_stop:
+                getLedFragment().stopPattern();
+                return true;
+            case R.id.action_debug:
+                DebugActivity.start(this);
                 return true;
             case android.R.id.home:
                 NavUtils.navigateUpFromSameTask(this);
@@ -82,6 +136,11 @@ public class LedActivity extends AppCompatActivity implements WeaveDeviceProvide
         return super.onOptionsItemSelected(item);
     }
 
+    private LedSwitchesFragment getLedFragment() {
+        return (LedSwitchesFragment) getSupportFragmentManager()
+                .findFragmentById(R.id.led_fragment);
+    }
+
     @Override
     public WeaveDevice getDevice() {
         return mDevice;
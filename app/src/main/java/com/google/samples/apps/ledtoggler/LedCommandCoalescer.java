@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Merges rapid toggles of the same LED into as few Weave commands as possible.
+ * Requests for one LED of one device that arrive within the coalescing window are merged, so
+ * only the latest desired state is sent. At most one command per LED is in flight at a time; a
+ * request arriving while a command executes is held back and sent once that command finishes,
+ * unless the finished command already set the LED to the requested state.
+ *
+ * All methods must be called from the main thread.
+ */
+public class LedCommandCoalescer {
+    private static final String TAG = LedCommandCoalescer.class.getSimpleName();
+
+    /** Default time to collect further toggles of the same LED before sending a command. */
+    public static final long DEFAULT_WINDOW_MS = 150;
+
+    /**
+     * Sends the commands that survive coalescing.
+     */
+    public interface CommandSender {
+        /**
+         * Sends a command that sets a single LED. Implementations must call
+         * {@link LedCommandCoalescer#onCommandFinished(String, int, boolean)} on the main thread
+         * once the command completes, whether or not it succeeded.
+         */
+        void sendCommand(String deviceId, int ledIndex, boolean lightOn);
+    }
+
+    /** Coalescing state for a single LED on a single device. */
+    private class LedSlot implements Runnable {
+        final String key;
+        final String deviceId;
+        final int ledIndex;
+
+        boolean queued;
+        boolean queuedState;
+        boolean scheduled;
+        boolean inFlight;
+        boolean inFlightState;
+
+        LedSlot(String key, String deviceId, int ledIndex) {
+            this.key = key;
+            this.deviceId = deviceId;
+            this.ledIndex = ledIndex;
+        }
+
+        @Override
+        public void run() {
+            scheduled = false;
+            if (queued && !inFlight) {
+                send(this);
+            }
+        }
+
+        boolean isIdle() {
+            return !queued && !scheduled && !inFlight;
+        }
+    }
+
+    private final CommandSender mSender;
+    private final long mWindowMs;
+    private final Handler mHandler;
+    private final HashMap<String, LedSlot> mSlots = new HashMap<>();
+
+    private long mRequestedCount;
+    private long mCoalescedCount;
+    private long mSentCount;
+
+    public LedCommandCoalescer(CommandSender sender) {
+        this(sender, DEFAULT_WINDOW_MS);
+    }
+
+    /**
+     * @param sender Sends the commands that survive coalescing.
+     * @param windowMs How long to collect toggles of the same LED before sending a command.
+     */
+    public LedCommandCoalescer(CommandSender sender, long windowMs) {
+        mSender = sender;
+        mWindowMs = windowMs;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Requests that an LED be set to the given state. The command is sent after the coalescing
+     * window, or after the command currently in flight for the same LED has finished.
+     */
+    public void submit(String deviceId, int ledIndex, boolean lightOn) {
+        mRequestedCount++;
+        String key = deviceId + '/' + ledIndex;
+        LedSlot slot = mSlots.get(key);
+        if (slot == null) {
+            slot = new LedSlot(key, deviceId, ledIndex);
+            mSlots.put(key, slot);
+        }
+        if (slot.queued) {
+            // The previously requested state is superseded before it was ever sent.
+            mCoalescedCount++;
+        }
+        slot.queued = true;
+        slot.queuedState = lightOn;
+        if (!slot.scheduled) {
+            slot.scheduled = true;
+            mHandler.postDelayed(slot, mWindowMs);
+        }
+    }
+
+    /**
+     * Notifies the coalescer that the command previously handed to the {@link CommandSender} has
+     * completed, so the next queued state for the same LED, if any, can be sent.
+     */
+    public void onCommandFinished(String deviceId, int ledIndex, boolean success) {
+        LedSlot slot = mSlots.get(deviceId + '/' + ledIndex);
+        if (slot == null) {
+            return;
+        }
+        slot.inFlight = false;
+        if (slot.queued && !slot.scheduled) {
+            if (success && slot.queuedState == slot.inFlightState) {
+                // The command that just finished already set the requested state.
+                slot.queued = false;
+                mCoalescedCount++;
+            } else {
+                send(slot);
+            }
+        }
+        if (slot.isIdle()) {
+            mSlots.remove(slot.key);
+        }
+    }
+
+    /**
+     * Drops the state queued for an LED, if any, without sending it. A command already in
+     * flight is not affected.
+     */
+    public void cancel(String deviceId, int ledIndex) {
+        LedSlot slot = mSlots.get(deviceId + '/' + ledIndex);
+        if (slot == null) {
+            return;
+        }
+        if (slot.scheduled) {
+            mHandler.removeCallbacks(slot);
+            slot.scheduled = false;
+        }
+        slot.queued = false;
+        if (slot.isIdle()) {
+            mSlots.remove(slot.key);
+        }
+    }
+
+    /**
+     * Sends every queued state that isn't waiting on an in-flight command right away, instead of
+     * waiting for the coalescing window to expire.
+     */
+    public void flush() {
+        Iterator<LedSlot> iterator = mSlots.values().iterator();
+        while (iterator.hasNext()) {
+            LedSlot slot = iterator.next();
+            if (slot.scheduled) {
+                mHandler.removeCallbacks(slot);
+                slot.scheduled = false;
+            }
+            if (slot.queued && !slot.inFlight) {
+                send(slot);
+            }
+            if (slot.isIdle()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void send(LedSlot slot) {
+        slot.queued = false;
+        slot.inFlight = true;
+        slot.inFlightState = slot.queuedState;
+        mSentCount++;
+        mSender.sendCommand(slot.deviceId, slot.ledIndex, slot.inFlightState);
+    }
+
+    /** Returns how many LED state changes have been requested through {@link #submit}. */
+    public long getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    /** Returns how many requested state changes were merged away without sending a command. */
+    public long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /** Returns how many commands were actually handed to the {@link CommandSender}. */
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    /** Returns how many LEDs have a state queued or a command in flight. */
+    public int getActiveCount() {
+        return mSlots.size();
+    }
+
+    /** Logs the current command counters. */
+    public void logStats() {
+        Log.i(TAG, "LED commands requested: " + mRequestedCount + ", coalesced: "
+                + mCoalescedCount + ", sent: " + mSentCount);
+    }
+}
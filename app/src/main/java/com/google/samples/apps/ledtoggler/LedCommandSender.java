@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.data.CommandResult;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+
+import java.util.HashMap;
+
+/**
+ * The path every LED toggle takes to its device. Toggles are merged by a
+ * {@link LedCommandCoalescer}, and the commands that survive are executed through the
+ * {@link CommandPipeline}, which keeps commands to the same LED in order. Outcomes are reported
+ * to a {@link Listener} on the main thread.
+ *
+ * All methods must be called from the main thread.
+ */
+public class LedCommandSender {
+    private static final String TAG = LedCommandSender.class.getSimpleName();
+
+    /**
+     * Receives the outcome of every command sent.
+     */
+    public interface Listener {
+        /** The command survived coalescing and is on its way to the device. */
+        void onCommandSent(WeaveDevice device, int ledIndex, boolean lightOn);
+
+        /** The device has applied the command. */
+        void onCommandSucceeded(WeaveDevice device, int ledIndex, boolean lightOn);
+
+        /** The device has accepted the command, but not applied it yet. */
+        void onCommandAccepted(WeaveDevice device, int ledIndex, boolean lightOn);
+
+        /**
+         * The command could not be executed, or failed on the device.
+         * @return true if states requested for the same LED since should be dropped instead of
+         * sent.
+         */
+        boolean onCommandFailed(WeaveDevice device, int ledIndex, boolean lightOn,
+                Response<CommandResult> result);
+    }
+
+    private final WeaveApiClient mApiClient;
+    private final Listener mListener;
+    private final LedCommandCoalescer mCoalescer;
+    private final HashMap<String, WeaveDevice> mDevices = new HashMap<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    public LedCommandSender(WeaveApiClient apiClient, Listener listener) {
+        this(apiClient, LedCommandCoalescer.DEFAULT_WINDOW_MS, listener);
+    }
+
+    /**
+     * @param apiClient Client the commands are executed with.
+     * @param windowMs Coalescing window, see {@link LedCommandCoalescer}.
+     * @param listener Receives the outcome of every command.
+     */
+    public LedCommandSender(WeaveApiClient apiClient, long windowMs, Listener listener) {
+        mApiClient = apiClient;
+        mListener = listener;
+        mCoalescer = new LedCommandCoalescer(new LedCommandCoalescer.CommandSender() {
+            @Override
+            public void sendCommand(String deviceId, int ledIndex, boolean lightOn) {
+                send(mDevices.get(deviceId), ledIndex, lightOn);
+            }
+        }, windowMs);
+    }
+
+    /**
+     * Requests that an LED of a device be set to the given state.
+     */
+    public void submit(WeaveDevice device, int ledIndex, boolean lightOn) {
+        mDevices.put(device.getId(), device);
+        mCoalescer.submit(device.getId(), ledIndex, lightOn);
+    }
+
+    /**
+     * Sends all toggles held back by the coalescing window right away.
+     */
+    public void flush() {
+        mCoalescer.flush();
+    }
+
+    public LedCommandCoalescer getCoalescer() {
+        return mCoalescer;
+    }
+
+    public void logStats() {
+        mCoalescer.logStats();
+    }
+
+    private void send(final WeaveDevice device, final int ledIndex, final boolean lightOn) {
+        mListener.onCommandSent(device, ledIndex, lightOn);
+        // The pipeline keeps commands to the same LED in order across every sender.
+        CommandPipeline.getInstance().submit(mApiClient, device,
+                LedFlasher.newSetCommand(ledIndex, lightOn), new CommandPipeline.Callback() {
+                    @Override
+                    public void onCommandFinished(final Response<CommandResult> result) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onSent(device, ledIndex, lightOn, result);
+                            }
+                        });
+                    }
+                });
+    }
+
+    private void onSent(WeaveDevice device, int ledIndex, boolean lightOn,
+            Response<CommandResult> result) {
+        boolean success = false;
+        if (result == null || !result.isSuccess() || result.getError() != null
+                || LedFlasher.isCommandFailed(result.getSuccess())) {
+            Log.e(TAG, "Failure setting light state: "
+                    + (result == null ? null : result.getError()));
+            if (mListener.onCommandFailed(device, ledIndex, lightOn, result)) {
+                mCoalescer.cancel(device.getId(), ledIndex);
+            }
+        } else {
+            success = true;
+            if (LedFlasher.isCommandDone(result.getSuccess())) {
+                DeviceStateCache.getInstance().putLed(device.getId(), ledIndex, lightOn);
+                mListener.onCommandSucceeded(device, ledIndex, lightOn);
+            } else {
+                Log.i(TAG, "Light state command is " + result.getSuccess().getCommandState());
+                mListener.onCommandAccepted(device, ledIndex, lightOn);
+            }
+        }
+        mCoalescer.onCommandFinished(device.getId(), ledIndex, success);
+    }
+}
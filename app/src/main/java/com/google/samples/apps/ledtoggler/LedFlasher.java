@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import com.google.android.apps.weave.apis.data.Command;
+import com.google.android.apps.weave.apis.data.CommandResult;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds commands for, and decodes the state of, the {@code _ledflasher} trait exposed by the
+ * Brillo LED flasher sample. LED indices are 0-based throughout the app and converted to the
+ * 1-based indices of the trait here.
+ *
+ * Has no Android dependencies.
+ */
+public final class LedFlasher {
+
+    /** Name of the trait in the device state. */
+    public static final String TRAIT = "_ledflasher";
+
+    static final String COMMAND_SET = "_ledflasher._set";
+    static final String PARAM_LED = "_led";
+    static final String PARAM_ON = "_on";
+    static final String STATE_LEDS = "_leds";
+
+    private static final String COMMAND_STATE_DONE = "done";
+    private static final String COMMAND_STATE_ERROR = "error";
+    private static final String COMMAND_STATE_ABORTED = "aborted";
+    private static final String COMMAND_STATE_CANCELLED = "cancelled";
+    private static final String COMMAND_STATE_EXPIRED = "expired";
+
+    private LedFlasher() {
+    }
+
+    /**
+     * Creates a Weave command for adjusting a single LED.
+     * @param ledIndex The 0-based index of the LED to adjust.
+     * @param lightOn Whether the LED should be on or not.
+     * @return an executable weave command to toggle the LED to the desired state.
+     */
+    public static Command newSetCommand(int ledIndex, boolean lightOn) {
+        HashMap<String, Object> commandParams = new HashMap<>(4);
+        // Led index in the brillo app is 1-based.
+        commandParams.put(PARAM_LED, ledIndex + 1);
+        commandParams.put(PARAM_ON, lightOn);
+        return new Command()
+                .setName(COMMAND_SET)
+                .setParameters(commandParams);
+    }
+
+    /**
+     * Appends to {@code out} one command for every LED whose state differs between
+     * {@code current} and {@code desired}. LEDs that don't exist in {@code desired} are skipped.
+     * @return the number of commands appended.
+     */
+    public static int appendSetCommands(LedStates current, LedStates desired, List<Command> out) {
+        int count = 0;
+        int size = desired.size();
+        for (int i = current.nextDifference(desired, 0); i >= 0 && i < size;
+                i = current.nextDifference(desired, i + 1)) {
+            out.add(newSetCommand(i, desired.isOn(i)));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Whether a successfully submitted command has already been applied by the device. Commands
+     * sent through the cloud may still be queued or in progress when the call returns; their
+     * effect has to be confirmed by a later state read.
+     */
+    public static boolean isCommandDone(CommandResult result) {
+        String state = result == null ? null : result.getCommandState();
+        return state == null || COMMAND_STATE_DONE.equals(state);
+    }
+
+    /**
+     * Whether a successfully submitted command ended up failing on the device.
+     */
+    public static boolean isCommandFailed(CommandResult result) {
+        String state = result == null ? null : result.getCommandState();
+        return COMMAND_STATE_ERROR.equals(state) || COMMAND_STATE_ABORTED.equals(state)
+                || COMMAND_STATE_CANCELLED.equals(state) || COMMAND_STATE_EXPIRED.equals(state);
+    }
+
+    /**
+     * Decodes the value of the {@link #TRAIT} state into {@code into}.
+     * @param stateValue The value returned by {@code DeviceState.getStateValue(TRAIT)}.
+     * @return false if the value doesn't look like {@code _ledflasher} state, in which case
+     * {@code into} is left unchanged.
+     */
+    public static boolean decodeState(Object stateValue, LedStates into) {
+        if (!(stateValue instanceof Map)) {
+            return false;
+        }
+        Object leds = ((Map<?, ?>) stateValue).get(STATE_LEDS);
+        if (!(leds instanceof List)) {
+            return false;
+        }
+        into.setFrom((List<?>) leds);
+        return true;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.data.CommandResult;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+
+/**
+ * Plays an LED pattern, such as a blink or a chase, on a device.
+ *
+ * Frames are scheduled against the time the pattern started rather than the previous frame, so
+ * timer jitter doesn't accumulate. Each frame is diffed against the states the device last
+ * confirmed, or is being sent, and only the LEDs that changed are sent.
+ *
+ * An LED has at most one command in flight. If the device can't keep up, later frames' changes
+ * to a busy LED are held and merged, so only the latest one is sent once the command in flight
+ * finishes. If the timer itself falls behind by whole frames, those frames are dropped. The
+ * achieved frame rate, counting only frames whose changes all went out on time, is reported
+ * against the target about once a second.
+ *
+ * All methods must be called from the main thread.
+ */
+public class LedPatternEngine {
+    private static final String TAG = LedPatternEngine.class.getSimpleName();
+
+    /** Frame rate patterns play at unless asked otherwise. */
+    public static final int DEFAULT_FPS = 4;
+    /** Highest frame rate a pattern may play at. */
+    public static final int MAX_FPS = 20;
+    // How often the frame rate is reported.
+    private static final long REPORT_INTERVAL_MS = 1000;
+
+    /**
+     * Computes the frames of a pattern.
+     */
+    public interface Pattern {
+        /**
+         * @param frame Index of the frame, counted from 0 when the pattern starts.
+         * @param states Receives the frame. Sized to the device's LEDs, all off.
+         */
+        void render(long frame, LedStates states);
+    }
+
+    /**
+     * Notified on the main thread of the pattern's progress.
+     */
+    public interface Listener {
+        /**
+         * The device confirmed an LED change.
+         * @param confirmed The LED states the device confirmed so far. Must not be modified.
+         */
+        void onStatesConfirmed(LedStates confirmed);
+
+        /** The frame rate achieved over the last second, against the one asked for. */
+        void onFrameRate(float achievedFps, int targetFps);
+    }
+
+    /** Every LED on, then every LED off. */
+    public static final Pattern BLINK = new Pattern() {
+        @Override
+        public void render(long frame, LedStates states) {
+            states.setAll(frame % 2 == 0);
+        }
+    };
+
+    /** A single lit LED running along the board. */
+    public static final Pattern CHASE = new Pattern() {
+        @Override
+        public void render(long frame, LedStates states) {
+            if (states.size() > 0) {
+                states.set((int) (frame % states.size()), true);
+            }
+        }
+    };
+
+    /** LEDs lighting up one by one until all are lit, then starting over. */
+    public static final Pattern PROGRESS = new Pattern() {
+        @Override
+        public void render(long frame, LedStates states) {
+            int lit = (int) (frame % (states.size() + 1));
+            for (int i = 0; i < lit; i++) {
+                states.set(i, true);
+            }
+        }
+    };
+
+    private final WeaveApiClient mApiClient;
+    private final WeaveDevice mDevice;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    // What the device confirmed, and what it was last asked for: the confirmed state of idle
+    // LEDs, the state being sent to busy ones.
+    private final LedStates mConfirmed = new LedStates();
+    private final LedStates mRequested = new LedStates();
+    // LEDs with a command in flight, and those with a change held until it finishes.
+    private final LedStates mBusy = new LedStates();
+    private final LedStates mHeld = new LedStates();
+    private final LedStates mHeldStates = new LedStates();
+    private final LedStates mFrame = new LedStates();
+
+    private Pattern mPattern;
+    private int mTargetFps;
+    private long mPeriodMs;
+    private long mStartedAtMs;
+    private long mFrameIndex;
+    // Incremented on every start and stop, so results of an earlier run are told apart.
+    private int mRun;
+
+    private long mReportStartedAtMs;
+    private int mReportOnTimeFrames;
+
+    private long mFrames;
+    private long mOnTimeFrames;
+    private long mDroppedFrames;
+    private long mMergedChanges;
+    private long mCommandsSent;
+    private long mCommandsSaved;
+    private long mCommandsFailed;
+
+    /**
+     * @param apiClient Client the commands are executed with.
+     * @param device Device the patterns are played on.
+     * @param listener Notified of the pattern's progress.
+     */
+    public LedPatternEngine(WeaveApiClient apiClient, WeaveDevice device, Listener listener) {
+        mApiClient = apiClient;
+        mDevice = device;
+        mListener = listener;
+    }
+
+    /**
+     * Starts playing a pattern, replacing the one playing.
+     * @param fps Frames per second, up to {@link #MAX_FPS}.
+     * @param confirmed The LED states last read from the device; sets how many LEDs it has.
+     */
+    public void start(Pattern pattern, int fps, LedStates confirmed) {
+        stop();
+        mRun++;
+        mPattern = pattern;
+        mTargetFps = Math.max(1, Math.min(fps, MAX_FPS));
+        mPeriodMs = 1000 / mTargetFps;
+        int size = confirmed.size();
+        mConfirmed.copyFrom(confirmed);
+        mRequested.copyFrom(confirmed);
+        mBusy.resize(size);
+        mBusy.setAll(false);
+        mHeld.resize(size);
+        mHeld.setAll(false);
+        mHeldStates.resize(size);
+        mFrameIndex = 0;
+        mStartedAtMs = SystemClock.uptimeMillis();
+        mReportStartedAtMs = mStartedAtMs;
+        mReportOnTimeFrames = 0;
+        mFrames = 0;
+        mOnTimeFrames = 0;
+        mDroppedFrames = 0;
+        mMergedChanges = 0;
+        mCommandsSent = 0;
+        mCommandsSaved = 0;
+        mCommandsFailed = 0;
+        Log.i(TAG, "Playing pattern on " + mDevice.getName() + " at " + mTargetFps + " fps");
+        tick();
+    }
+
+    /**
+     * Stops playing. Commands in flight still finish; held changes are dropped.
+     */
+    public void stop() {
+        if (mPattern == null) {
+            return;
+        }
+        mPattern = null;
+        mRun++;
+        mHandler.removeCallbacks(mTick);
+    }
+
+    public boolean isPlaying() {
+        return mPattern != null;
+    }
+
+    private void tick() {
+        long now = SystemClock.uptimeMillis();
+        long lateMs = now - (mStartedAtMs + mFrameIndex * mPeriodMs);
+        if (lateMs >= mPeriodMs) {
+            // Skip to the frame due now, rather than playing the missed ones in a burst.
+            long missed = lateMs / mPeriodMs;
+            mFrameIndex += missed;
+            mDroppedFrames += missed;
+        }
+        mFrame.resize(mConfirmed.size());
+        mFrame.setAll(false);
+        mPattern.render(mFrameIndex, mFrame);
+        if (apply(mFrame)) {
+            mOnTimeFrames++;
+            mReportOnTimeFrames++;
+        }
+        mFrames++;
+        mFrameIndex++;
+        if (now - mReportStartedAtMs >= REPORT_INTERVAL_MS) {
+            mListener.onFrameRate(mReportOnTimeFrames * 1000f / (now - mReportStartedAtMs),
+                    mTargetFps);
+            mReportStartedAtMs = now;
+            mReportOnTimeFrames = 0;
+        }
+        mHandler.postAtTime(mTick, mStartedAtMs + mFrameIndex * mPeriodMs);
+    }
+
+    /**
+     * Sends the LEDs of a frame that changed, holding changes to LEDs with a command in flight.
+     * @return true if every change was sent.
+     */
+    private boolean apply(LedStates frame) {
+        boolean onTime = true;
+        int size = frame.size();
+        int changes = 0;
+        for (int i = frame.nextDifference(mRequested, 0); i >= 0 && i < size;
+                i = frame.nextDifference(mRequested, i + 1)) {
+            changes++;
+            boolean lightOn = frame.isOn(i);
+            if (mBusy.isOn(i)) {
+                if (mHeld.isOn(i)) {
+                    mMergedChanges++;
+                }
+                mHeld.set(i, true);
+                mHeldStates.set(i, lightOn);
+                onTime = false;
+            } else {
+                send(i, lightOn);
+            }
+        }
+        // Held changes the frame no longer asks for are dropped.
+        for (int i = mHeld.nextOn(0); i >= 0; i = mHeld.nextOn(i + 1)) {
+            if (frame.isOn(i) == mRequested.isOn(i)) {
+                mHeld.set(i, false);
+                mMergedChanges++;
+            }
+        }
+        mCommandsSaved += size - changes;
+        return onTime;
+    }
+
+    private void send(final int ledIndex, final boolean lightOn) {
+        mBusy.set(ledIndex, true);
+        mRequested.set(ledIndex, lightOn);
+        mCommandsSent++;
+        final int run = mRun;
+        CommandPipeline.getInstance().submit(mApiClient, mDevice,
+                LedFlasher.newSetCommand(ledIndex, lightOn), new CommandPipeline.Callback() {
+                    @Override
+                    public void onCommandFinished(final Response<CommandResult> result) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onSent(run, ledIndex, lightOn, result);
+                            }
+                        });
+                    }
+                });
+    }
+
+    private void onSent(int run, int ledIndex, boolean lightOn, Response<CommandResult> result) {
+        if (run != mRun || ledIndex >= mConfirmed.size()) {
+            // A later start resized the states; this run's bookkeeping is gone.
+            return;
+        }
+        mBusy.set(ledIndex, false);
+        if (result == null || !result.isSuccess() || result.getError() != null
+                || LedFlasher.isCommandFailed(result.getSuccess())) {
+            mCommandsFailed++;
+            Log.w(TAG, "Pattern frame failed: " + (result == null ? null : result.getError()));
+            // Sent again by the next frame that needs it.
+            mRequested.set(ledIndex, mConfirmed.isOn(ledIndex));
+        } else {
+            // A command the device accepted but hasn't applied yet is applied in order, so the
+            // frame is counted as delivered.
+            mConfirmed.set(ledIndex, lightOn);
+            if (LedFlasher.isCommandDone(result.getSuccess())) {
+                DeviceStateCache.getInstance().putLed(mDevice.getId(), ledIndex, lightOn);
+            }
+            mListener.onStatesConfirmed(mConfirmed);
+        }
+        if (mHeld.isOn(ledIndex)) {
+            mHeld.set(ledIndex, false);
+            if (mHeldStates.isOn(ledIndex) != mRequested.isOn(ledIndex)) {
+                send(ledIndex, mHeldStates.isOn(ledIndex));
+            }
+        }
+    }
+
+    /** Returns a one-line summary of the engine counters. */
+    public String describe() {
+        long elapsedMs = SystemClock.uptimeMillis() - mStartedAtMs;
+        return "target " + mTargetFps + " fps, achieved "
+                + (elapsedMs <= 0 ? 0 : Math.round(mOnTimeFrames * 10000f / elapsedMs) / 10f)
+                + " fps, frames " + mFrames + " (" + mOnTimeFrames + " on time, "
+                + mDroppedFrames + " dropped), changes merged " + mMergedChanges
+                + ", commands sent " + mCommandsSent + " (" + mCommandsFailed + " failed), "
+                + mCommandsSaved + " unchanged LEDs not sent";
+    }
+
+    /** Logs the engine counters of the pattern played last. */
+    public void logStats() {
+        Log.i(TAG, describe());
+    }
+}
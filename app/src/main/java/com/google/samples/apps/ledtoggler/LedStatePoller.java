@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.data.DeviceState;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+
+/**
+ * Polls the {@code _ledflasher} state of a device that has no event feed. Polls quickly right
+ * after the user interacts with the device, then backs off exponentially while the state stays
+ * the same. Each result is compared against the last known state, and the listener is only
+ * notified of real changes.
+ *
+ * All methods must be called from the main thread.
+ */
+public class LedStatePoller {
+    private static final String TAG = LedStatePoller.class.getSimpleName();
+
+    /** Interval right after a user interaction or a detected change. */
+    public static final long MIN_INTERVAL_MS = 2000;
+    /** Interval the poller backs off to while the state is stable. */
+    public static final long MAX_INTERVAL_MS = 60000;
+    private static final int BACKOFF_FACTOR = 2;
+
+    /**
+     * Notified on the main thread when a poll finds the LED states changed.
+     */
+    public interface Listener {
+        void onLedStatesChanged(LedStates states);
+    }
+
+    private final WeaveApiClient mApiClient;
+    private final WeaveDevice mDevice;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler();
+    private final Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    // Last known state, and the scratch states each poll is decoded into.
+    private final LedStates mSnapshot = new LedStates();
+    private final LedStates mPolled = new LedStates();
+    private boolean mHasSnapshot;
+
+    private boolean mStarted;
+    private boolean mPollInFlight;
+    // Incremented on every start, so results of polls issued before a stop are ignored.
+    private int mGeneration;
+    private long mIntervalMs = MIN_INTERVAL_MS;
+    private long mNextPollAtMs;
+
+    private long mPolls;
+    private long mChangedPolls;
+    private long mUnchangedPolls;
+    private long mFailedPolls;
+
+    public LedStatePoller(WeaveApiClient apiClient, WeaveDevice device, Listener listener) {
+        mApiClient = apiClient;
+        mDevice = device;
+        mListener = listener;
+    }
+
+    /** Starts polling, at the fast interval. */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mGeneration++;
+        mPollInFlight = false;
+        mIntervalMs = MIN_INTERVAL_MS;
+        schedule(mIntervalMs);
+    }
+
+    /** Pauses polling, e.g. while the device's state isn't visible. */
+    public void stop() {
+        mStarted = false;
+        mHandler.removeCallbacks(mPoll);
+    }
+
+    /**
+     * Drops back to the fast interval, since state tends to change right after the user acts.
+     */
+    public void onUserInteraction() {
+        mIntervalMs = MIN_INTERVAL_MS;
+        if (mStarted && !mPollInFlight
+                && mNextPollAtMs - SystemClock.uptimeMillis() > MIN_INTERVAL_MS) {
+            schedule(MIN_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Records state read outside the poller, so the next poll is compared against it.
+     */
+    public void onStateRead(LedStates states) {
+        mSnapshot.copyFrom(states);
+        mHasSnapshot = true;
+    }
+
+    private void schedule(long delayMs) {
+        mHandler.removeCallbacks(mPoll);
+        mNextPollAtMs = SystemClock.uptimeMillis() + delayMs;
+        mHandler.postDelayed(mPoll, delayMs);
+    }
+
+    private void poll() {
+        if (!mStarted || mPollInFlight) {
+            return;
+        }
+        mPollInFlight = true;
+        mPolls++;
+        final int generation = mGeneration;
+        // Network call, punt off the main thread.
+        new AsyncTask<Void, Void, Response<DeviceState>>() {
+            @Override
+            protected Response<DeviceState> doInBackground(Void... params) {
+                return WeaveGateway.getInstance().getState(mApiClient, mDevice);
+            }
+
+            @Override
+            protected void onPostExecute(Response<DeviceState> result) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mPollInFlight = false;
+                if (!mStarted) {
+                    return;
+                }
+                onPollFinished(result);
+                schedule(mIntervalMs);
+            }
+        }.executeOnExecutor(WeaveScheduler.getInstance()
+                .executor(WeaveScheduler.PRIORITY_BACKGROUND));
+    }
+
+    private void onPollFinished(Response<DeviceState> result) {
+        if (result == null || !result.isSuccess() || result.getError() != null
+                || !LedFlasher.decodeState(
+                        result.getSuccess().getStateValue(LedFlasher.TRAIT), mPolled)) {
+            mFailedPolls++;
+            Log.e(TAG, "Failure polling state: " + (result == null ? null : result.getError()));
+            backOff();
+            return;
+        }
+        DeviceStateCache.getInstance().put(mDevice.getId(), mPolled);
+        if (mHasSnapshot && mPolled.equals(mSnapshot)) {
+            mUnchangedPolls++;
+            backOff();
+            return;
+        }
+        mChangedPolls++;
+        mSnapshot.copyFrom(mPolled);
+        mHasSnapshot = true;
+        mIntervalMs = MIN_INTERVAL_MS;
+        mListener.onLedStatesChanged(mSnapshot);
+    }
+
+    private void backOff() {
+        mIntervalMs = Math.min(mIntervalMs * BACKOFF_FACTOR, MAX_INTERVAL_MS);
+    }
+
+    /** Returns the delay currently used between polls. */
+    public long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    public long getPollCount() {
+        return mPolls;
+    }
+
+    public long getChangedCount() {
+        return mChangedPolls;
+    }
+
+    public long getUnchangedCount() {
+        return mUnchangedPolls;
+    }
+
+    /** Returns the fraction of completed polls that found a change, between 0 and 1. */
+    public float getHitRate() {
+        long completed = mChangedPolls + mUnchangedPolls;
+        return completed == 0 ? 0 : (float) mChangedPolls / completed;
+    }
+
+    /** Logs the polling counters. */
+    public void logStats() {
+        Log.i(TAG, "Polls: " + mPolls + ", changed: " + mChangedPolls + ", unchanged: "
+                + mUnchangedPolls + ", failed: " + mFailedPolls + ", hit rate: "
+                + Math.round(getHitRate() * 100) + "%, interval: " + mIntervalMs + "ms");
+    }
+}
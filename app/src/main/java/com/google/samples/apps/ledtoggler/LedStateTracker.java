@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import java.util.Arrays;
+
+/**
+ * Tracks, for every LED of a board, the state the user wants (desired), the state last
+ * confirmed by the device (confirmed), and whether a change is still on its way to the device
+ * (pending). Toggles are applied to the desired state immediately; command results and state
+ * reads then confirm them, or roll them back to the confirmed state.
+ *
+ * A state read that disagrees with a pending LED rolls it back once no command for it is
+ * outstanding, that is queued, in flight, or accepted by the device but not applied yet. If the
+ * device keeps disagreeing for {@link #MAX_CONFIRMATION_READS} reads, the LED is rolled back
+ * anyway, so a command that is never applied doesn't leave it pending for good.
+ *
+ * Not thread-safe. Has no Android dependencies.
+ */
+public final class LedStateTracker {
+    /** Disagreeing state reads after which a pending LED is rolled back regardless. */
+    public static final int MAX_CONFIRMATION_READS = 3;
+
+    private final LedStates mDesired = new LedStates();
+    private final LedStates mConfirmed = new LedStates();
+    private final LedStates mPending = new LedStates();
+    // Toggled but not sent yet, and accepted by the device but not applied yet.
+    private final LedStates mQueued = new LedStates();
+    private final LedStates mAccepted = new LedStates();
+    // Per LED: commands sent and not answered, and state reads that disagreed while pending.
+    private int[] mInFlight = new int[0];
+    private int[] mMisses = new int[0];
+
+    /** The states to show: confirmed states, overlaid with the user's pending changes. */
+    public LedStates getDesired() {
+        return mDesired;
+    }
+
+    /** The states last reported by the device. */
+    public LedStates getConfirmed() {
+        return mConfirmed;
+    }
+
+    /** One bit per LED, set while a change to that LED hasn't been confirmed yet. */
+    public LedStates getPending() {
+        return mPending;
+    }
+
+    public int size() {
+        return mDesired.size();
+    }
+
+    public boolean isPending(int index) {
+        return mPending.isOn(index);
+    }
+
+    /**
+     * Returns whether a command the device accepted but hasn't applied yet still waits for a
+     * state read to confirm or roll it back.
+     */
+    public boolean isAwaitingConfirmation() {
+        return mAccepted.nextOn(0) >= 0;
+    }
+
+    /**
+     * Optimistically flips the desired state of an LED and marks it pending.
+     * @return the new desired state.
+     */
+    public boolean toggle(int index) {
+        boolean lightOn = mDesired.toggle(index);
+        boolean pending = lightOn != mConfirmed.isOn(index);
+        mPending.set(index, pending);
+        mQueued.set(index, pending);
+        mMisses[index] = 0;
+        return lightOn;
+    }
+
+    /** Records that a command setting an LED was sent to the device. */
+    public void onCommandSent(int index) {
+        if (index >= size()) {
+            return;
+        }
+        mQueued.set(index, false);
+        mInFlight[index]++;
+    }
+
+    /**
+     * Records that the device applied a command setting an LED. The LED stays pending if the
+     * user has changed it again since the command was sent.
+     */
+    public void onCommandSucceeded(int index, boolean lightOn) {
+        if (index >= size()) {
+            return;
+        }
+        onCommandAnswered(index);
+        mConfirmed.set(index, lightOn);
+        mPending.set(index, mDesired.isOn(index) != lightOn);
+        if (!mPending.isOn(index)) {
+            mAccepted.set(index, false);
+            mMisses[index] = 0;
+        }
+    }
+
+    /**
+     * Records that the device accepted a command setting an LED, but hasn't applied it yet. The
+     * LED stays pending until a state read confirms or rolls it back.
+     */
+    public void onCommandAccepted(int index, boolean lightOn) {
+        if (index >= size()) {
+            return;
+        }
+        onCommandAnswered(index);
+        if (mDesired.isOn(index) == lightOn) {
+            mAccepted.set(index, mPending.isOn(index));
+        }
+    }
+
+    /**
+     * Records that a command setting an LED failed. If that command carried the user's latest
+     * intent, the LED is rolled back to its confirmed state.
+     * @return true if the LED was rolled back.
+     */
+    public boolean onCommandFailed(int index, boolean lightOn) {
+        if (index >= size()) {
+            return false;
+        }
+        onCommandAnswered(index);
+        if (mDesired.isOn(index) != lightOn) {
+            // A newer change to this LED is still on its way.
+            return false;
+        }
+        rollBack(index, mConfirmed.isOn(index));
+        return true;
+    }
+
+    private void onCommandAnswered(int index) {
+        if (mInFlight[index] > 0) {
+            mInFlight[index]--;
+        }
+    }
+
+    /**
+     * Takes in a fresh read of the device's state. LEDs without pending changes follow the
+     * device; pending LEDs are confirmed if the device already shows the desired state, and
+     * rolled back to what it shows if nothing outstanding can change it any more.
+     */
+    public void onStateRead(LedStates read) {
+        int size = read.size();
+        resize(size);
+        mConfirmed.copyFrom(read);
+        for (int i = 0; i < size; i++) {
+            if (!mPending.isOn(i)) {
+                mDesired.set(i, read.isOn(i));
+            } else if (mDesired.isOn(i) == read.isOn(i)) {
+                mPending.set(i, false);
+                mAccepted.set(i, false);
+                mMisses[i] = 0;
+            } else {
+                boolean outstanding = mInFlight[i] > 0 || mQueued.isOn(i)
+                        || mAccepted.isOn(i);
+                if (!outstanding || ++mMisses[i] >= MAX_CONFIRMATION_READS) {
+                    rollBack(i, read.isOn(i));
+                }
+            }
+        }
+    }
+
+    private void rollBack(int index, boolean lightOn) {
+        mDesired.set(index, lightOn);
+        mPending.set(index, false);
+        mQueued.set(index, false);
+        mAccepted.set(index, false);
+        mMisses[index] = 0;
+    }
+
+    private void resize(int size) {
+        mDesired.resize(size);
+        mPending.resize(size);
+        mQueued.resize(size);
+        mAccepted.resize(size);
+        if (size > mInFlight.length) {
+            mInFlight = Arrays.copyOf(mInFlight, size);
+            mMisses = Arrays.copyOf(mMisses, size);
+        } else {
+            // LEDs that disappeared start afresh if they come back.
+            Arrays.fill(mInFlight, size, mInFlight.length, 0);
+            Arrays.fill(mMisses, size, mMisses.length, 0);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact, mutable state of every LED on a board: one bit per LED for on/off, plus an optional
+ * primitive level per LED (for brightness or colour) that is only allocated once used. Holds
+ * hundreds of LEDs in a few words instead of one object per LED.
+ *
+ * Diffs are iterated without allocating:
+ * <pre>
+ * for (int i = a.nextDifference(b, 0); i >= 0; i = a.nextDifference(b, i + 1)) { ... }
+ * </pre>
+ *
+ * Not thread-safe. Has no Android dependencies.
+ */
+public final class LedStates {
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+    private static final long WORD_MASK = 0xffffffffffffffffL;
+
+    private long[] mWords;
+    private int[] mLevels;
+    private int mSize;
+
+    public LedStates() {
+        this(0);
+    }
+
+    /**
+     * Creates the state of {@code size} LEDs, all off.
+     */
+    public LedStates(int size) {
+        mWords = new long[wordCount(size)];
+        mSize = size;
+    }
+
+    /**
+     * Creates a copy of the given states.
+     */
+    public LedStates(LedStates other) {
+        this(other.mSize);
+        copyFrom(other);
+    }
+
+    /** Returns the number of LEDs. */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Changes the number of LEDs. Existing LEDs keep their state; added LEDs are off.
+     */
+    public void resize(int size) {
+        if (size < mSize) {
+            clearRange(size, mSize);
+        }
+        int words = wordCount(size);
+        if (words > mWords.length) {
+            mWords = Arrays.copyOf(mWords, Math.max(words, 2 * mWords.length));
+        }
+        if (mLevels != null && size > mLevels.length) {
+            mLevels = Arrays.copyOf(mLevels, Math.max(size, 2 * mLevels.length));
+        }
+        mSize = size;
+    }
+
+    public boolean isOn(int index) {
+        checkIndex(index);
+        return (mWords[index >> ADDRESS_BITS_PER_WORD] & (1L << index)) != 0;
+    }
+
+    public void set(int index, boolean on) {
+        checkIndex(index);
+        if (on) {
+            mWords[index >> ADDRESS_BITS_PER_WORD] |= 1L << index;
+        } else {
+            mWords[index >> ADDRESS_BITS_PER_WORD] &= ~(1L << index);
+        }
+    }
+
+    /**
+     * Flips the LED at the given index.
+     * @return The new state of the LED.
+     */
+    public boolean toggle(int index) {
+        checkIndex(index);
+        mWords[index >> ADDRESS_BITS_PER_WORD] ^= 1L << index;
+        return isOn(index);
+    }
+
+    /** Turns every LED on or off. */
+    public void setAll(boolean on) {
+        int words = wordCount(mSize);
+        Arrays.fill(mWords, 0, words, on ? WORD_MASK : 0);
+        if (on && words > 0) {
+            clearRange(mSize, words << ADDRESS_BITS_PER_WORD);
+        }
+    }
+
+    /**
+     * Makes these states an exact copy of {@code other}, including its size.
+     */
+    public void copyFrom(LedStates other) {
+        resize(other.mSize);
+        System.arraycopy(other.mWords, 0, mWords, 0, wordCount(other.mSize));
+        if (other.mLevels != null) {
+            ensureLevels();
+            System.arraycopy(other.mLevels, 0, mLevels, 0, other.mSize);
+        } else if (mLevels != null) {
+            Arrays.fill(mLevels, 0);
+        }
+    }
+
+    /**
+     * Replaces these states with a list of on/off values, such as the {@code _leds} state of
+     * the {@code _ledflasher} trait. Entries that aren't {@link Boolean#TRUE} count as off.
+     */
+    public void setFrom(List<?> values) {
+        int size = values.size();
+        resize(size);
+        Arrays.fill(mWords, 0, wordCount(size), 0);
+        for (int i = 0; i < size; i++) {
+            if (Boolean.TRUE.equals(values.get(i))) {
+                mWords[i >> ADDRESS_BITS_PER_WORD] |= 1L << i;
+            }
+        }
+    }
+
+    /** Returns the index of the first LED that is on, starting at {@code fromIndex}, or -1. */
+    public int nextOn(int fromIndex) {
+        return nextSetBit(mWords, null, fromIndex, mSize);
+    }
+
+    /**
+     * Returns the first index, starting at {@code fromIndex}, at which these states and
+     * {@code other} differ, or -1. LEDs that only exist in one of the two count as different.
+     */
+    public int nextDifference(LedStates other, int fromIndex) {
+        int commonSize = Math.min(mSize, other.mSize);
+        int index = nextSetBit(mWords, other.mWords, fromIndex, commonSize);
+        if (index >= 0) {
+            return index;
+        }
+        int maxSize = Math.max(mSize, other.mSize);
+        return Math.max(fromIndex, commonSize) < maxSize ? Math.max(fromIndex, commonSize) : -1;
+    }
+
+    /** Returns how many LEDs differ between these states and {@code other}. */
+    public int countDifferences(LedStates other) {
+        int commonSize = Math.min(mSize, other.mSize);
+        int count = Math.abs(mSize - other.mSize);
+        int words = wordCount(commonSize);
+        for (int i = 0; i < words; i++) {
+            long diff = mWords[i] ^ other.mWords[i];
+            if (i == words - 1) {
+                diff &= lastWordMask(commonSize);
+            }
+            count += Long.bitCount(diff);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the level (brightness or colour) of the given LED, or 0 if levels were never set.
+     */
+    public int getLevel(int index) {
+        checkIndex(index);
+        return mLevels == null ? 0 : mLevels[index];
+    }
+
+    public void setLevel(int index, int level) {
+        checkIndex(index);
+        ensureLevels();
+        mLevels[index] = level;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof LedStates)) {
+            return false;
+        }
+        LedStates other = (LedStates) o;
+        if (mSize != other.mSize || nextDifference(other, 0) >= 0) {
+            return false;
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (getLevel(i) != other.getLevel(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = mSize;
+        int words = wordCount(mSize);
+        for (int i = 0; i < words; i++) {
+            long word = i == words - 1 ? mWords[i] & lastWordMask(mSize) : mWords[i];
+            hash = 31 * hash + (int) (word ^ (word >>> 32));
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(mSize + 2).append('[');
+        for (int i = 0; i < mSize; i++) {
+            builder.append(isOn(i) ? '1' : '0');
+        }
+        return builder.append(']').toString();
+    }
+
+    private void ensureLevels() {
+        if (mLevels == null) {
+            mLevels = new int[Math.max(mSize, 1)];
+        } else if (mLevels.length < mSize) {
+            mLevels = Arrays.copyOf(mLevels, mSize);
+        }
+    }
+
+    /** Clears the bits in [from, to), so bits beyond the size never leak into comparisons. */
+    private void clearRange(int from, int to) {
+        for (int i = from; i < to; i++) {
+            int word = i >> ADDRESS_BITS_PER_WORD;
+            if (word >= mWords.length) {
+                break;
+            }
+            mWords[word] &= ~(1L << i);
+            if (mLevels != null && i < mLevels.length) {
+                mLevels[i] = 0;
+            }
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("LED " + index + " of " + mSize);
+        }
+    }
+
+    /**
+     * Returns the first set bit of {@code a} (or of {@code a ^ b} if {@code b} isn't null) in
+     * [fromIndex, size), or -1.
+     */
+    private static int nextSetBit(long[] a, long[] b, int fromIndex, int size) {
+        if (fromIndex >= size) {
+            return -1;
+        }
+        int wordIndex = fromIndex >> ADDRESS_BITS_PER_WORD;
+        int lastWord = (size - 1) >> ADDRESS_BITS_PER_WORD;
+        long word = (b == null ? a[wordIndex] : a[wordIndex] ^ b[wordIndex])
+                & (WORD_MASK << fromIndex);
+        while (true) {
+            if (wordIndex == lastWord) {
+                word &= lastWordMask(size);
+            }
+            if (word != 0) {
+                return (wordIndex << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex > lastWord) {
+                return -1;
+            }
+            word = b == null ? a[wordIndex] : a[wordIndex] ^ b[wordIndex];
+        }
+    }
+
+    private static long lastWordMask(int size) {
+        return WORD_MASK >>> -size;
+    }
+
+    private static int wordCount(int size) {
+        return (size + 63) >> ADDRESS_BITS_PER_WORD;
+    }
+}
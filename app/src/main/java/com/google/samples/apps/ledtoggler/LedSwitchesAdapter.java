@@ -22,20 +22,32 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Switch;
 
-import java.util.ArrayList;
-
 /**
- * Adapter for the list of switches representing device LEDs. For each {@link Led} added to this
- * adapter, a corresponding {@link Switch} will be created that, when clicked, will trigger a
- * callback on the given {@link OnLightToggledListener}.
+ * Adapter for the list of switches representing device LEDs. For each LED tracked by the
+ * adapter's {@link LedStateTracker}, a corresponding {@link Switch} will be created that, when
+ * clicked, will trigger a callback on the given {@link OnLightToggledListener}.
+ *
+ * Toggles are shown immediately. Until the device confirms them, the switch is drawn dimmed;
+ * if the command fails, the switch returns to its confirmed state. LED states remembered from a
+ * previous visit can be shown before the device is read; all switches are drawn dimmed until the
+ * first read.
  */
 public class LedSwitchesAdapter extends RecyclerView.Adapter<LedSwitchesAdapter.ViewHolder> {
     private static final String TAG = LedSwitchesAdapter.class.getSimpleName();
 
     private final OnLightToggledListener lightToggledListener;
 
-    private final ArrayList<Led> mDataSet;
+    /** Alpha of switches whose change hasn't been confirmed by the device yet. */
+    private static final float PENDING_ALPHA = 0.5f;
+
+    private final LedStateTracker mDataSet;
+    // What the switches showed before the last update, to find the ones that need rebinding.
+    private final LedStates mShownStates = new LedStates();
+    private final LedStates mShownPending = new LedStates();
     private String mLedLabel;
+    // Whether the switches show remembered states, and whether the device has been read since.
+    private boolean mStale;
+    private boolean mRead;
 
     public class ViewHolder extends RecyclerView.ViewHolder {
 
@@ -51,15 +63,16 @@ public class LedSwitchesAdapter extends RecyclerView.Adapter<LedSwitchesAdapter.
                 @Override
                 public void onClick(View v) {
                     int position = getAdapterPosition();
-                    Led led = mDataSet.get(position);
+                    if (position == RecyclerView.NO_POSITION) {
+                        return;
+                    }
 
-                    // Update the internal model
-                    led.toggleLight();
-
-                    boolean lightOn = led.isLightOn();
+                    // Update the internal model; the change is pending until confirmed.
+                    boolean lightOn = mDataSet.toggle(position);
 
                     // Update the UI to reflect new state.
                     toggler.setChecked(lightOn);
+                    toggler.setAlpha(alphaOf(position));
 
                     // Update the light
                     lightToggledListener.onLightToggled(position, lightOn);
@@ -74,7 +87,7 @@ public class LedSwitchesAdapter extends RecyclerView.Adapter<LedSwitchesAdapter.
 
     public LedSwitchesAdapter(OnLightToggledListener lightToggledListener) {
         this.lightToggledListener = lightToggledListener;
-        mDataSet = new ArrayList<>();
+        mDataSet = new LedStateTracker();
     }
 
     @Override
@@ -96,7 +109,12 @@ public class LedSwitchesAdapter extends RecyclerView.Adapter<LedSwitchesAdapter.
         int normalizedPosition = position + 1;
         holder.toggler.setText(String.format(mLedLabel, normalizedPosition));
 
-        holder.toggler.setChecked(mDataSet.get(position).isLightOn());
+        holder.toggler.setChecked(mDataSet.getDesired().isOn(position));
+        holder.toggler.setAlpha(alphaOf(position));
+    }
+
+    private float alphaOf(int position) {
+        return mStale || mDataSet.isPending(position) ? PENDING_ALPHA : 1f;
     }
 
     @Override
@@ -104,13 +122,126 @@ public class LedSwitchesAdapter extends RecyclerView.Adapter<LedSwitchesAdapter.
         return mDataSet.size();
     }
 
-    public void add(Led led) {
-        mDataSet.add(led);
-        notifyItemInserted(mDataSet.size() - 1);
+    /**
+     * Brings the switches in line with a fresh read of the device's LED states. Switches with
+     * unconfirmed changes keep showing them. Only switches whose state actually changed are
+     * rebound; LEDs that appeared or disappeared at the end are notified as a single range.
+     * @param ledStates The on/off state of every LED on the device.
+     */
+    public void reconcile(LedStates ledStates) {
+        beginUpdate();
+        mDataSet.onStateRead(ledStates);
+        endUpdate();
+        mRead = true;
+        if (mStale) {
+            mStale = false;
+            notifyItemRangeChanged(0, getItemCount());
+        }
+    }
+
+    /**
+     * Shows LED states remembered from a previous visit, dimmed, unless the device has already
+     * been read.
+     */
+    public void showSnapshot(LedStates ledStates) {
+        if (mRead) {
+            return;
+        }
+        beginUpdate();
+        mDataSet.onStateRead(ledStates);
+        mStale = true;
+        endUpdate();
+    }
+
+    /** Returns whether the switches show states read from the device during this visit. */
+    public boolean hasReadStates() {
+        return mRead;
+    }
+
+    /** Returns the LED states last confirmed by the device. */
+    public LedStates getConfirmedStates() {
+        return mDataSet.getConfirmed();
+    }
+
+    /**
+     * Confirms an LED change that the device reported as applied.
+     */
+    public void onCommandSucceeded(int position, boolean lightOn) {
+        beginUpdate();
+        mDataSet.onCommandSucceeded(position, lightOn);
+        endUpdate();
+    }
+
+    /** Records that a command for an LED was sent to the device. */
+    public void onCommandSent(int position) {
+        mDataSet.onCommandSent(position);
+    }
+
+    /**
+     * Records that the device accepted a command for an LED but hasn't applied it yet. The switch
+     * stays pending until a state read confirms or rolls it back.
+     */
+    public void onCommandAccepted(int position, boolean lightOn) {
+        mDataSet.onCommandAccepted(position, lightOn);
+    }
+
+    /** Returns whether switches wait on a state read to confirm commands the device accepted. */
+    public boolean isAwaitingConfirmation() {
+        return mDataSet.isAwaitingConfirmation();
+    }
+
+    /**
+     * Rolls an LED back to its confirmed state after a command failed, unless the user has
+     * changed it again since.
+     * @return true if the LED was rolled back.
+     */
+    public boolean onCommandFailed(int position, boolean lightOn) {
+        beginUpdate();
+        boolean rolledBack = mDataSet.onCommandFailed(position, lightOn);
+        endUpdate();
+        return rolledBack;
+    }
+
+    /** Returns the LED states currently shown, including unconfirmed changes. */
+    public LedStates getDesiredStates() {
+        return mDataSet.getDesired();
     }
 
-    public void clear() {
-        mDataSet.clear();
-        notifyDataSetChanged();
+    private void beginUpdate() {
+        mShownStates.copyFrom(mDataSet.getDesired());
+        mShownPending.copyFrom(mDataSet.getPending());
+    }
+
+    private void endUpdate() {
+        LedStates desired = mDataSet.getDesired();
+        LedStates pending = mDataSet.getPending();
+        int oldSize = mShownStates.size();
+        int newSize = desired.size();
+        int commonSize = Math.min(oldSize, newSize);
+        for (int i = 0; i < commonSize; i++) {
+            i = nextChange(desired, pending, i, commonSize);
+            if (i < 0) {
+                break;
+            }
+            notifyItemChanged(i);
+        }
+        if (newSize > oldSize) {
+            notifyItemRangeInserted(oldSize, newSize - oldSize);
+        } else if (newSize < oldSize) {
+            notifyItemRangeRemoved(newSize, oldSize - newSize);
+        }
+    }
+
+    /** Returns the first LED from {@code fromIndex} whose switch looks different, or -1. */
+    private int nextChange(LedStates desired, LedStates pending, int fromIndex, int size) {
+        int stateChange = mShownStates.nextDifference(desired, fromIndex);
+        int pendingChange = mShownPending.nextDifference(pending, fromIndex);
+        if (stateChange < 0 || stateChange >= size) {
+            return pendingChange < size ? pendingChange : -1;
+        }
+        if (pendingChange < 0 || pendingChange >= size) {
+            return stateChange;
+        }
+        return Math.min(stateChange, pendingChange);
     }
 }
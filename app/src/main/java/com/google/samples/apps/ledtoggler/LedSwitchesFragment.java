@@ -18,6 +18,7 @@ package com.google.samples.apps.ledtoggler;
 
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.Fragment;
 import android.support.v7.widget.LinearLayoutManager;
@@ -27,17 +28,11 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
-import com.google.android.apps.weave.apis.data.Command;
 import com.google.android.apps.weave.apis.data.CommandResult;
 import com.google.android.apps.weave.apis.data.DeviceState;
 import com.google.android.apps.weave.apis.data.WeaveApiClient;
 import com.google.android.apps.weave.apis.data.WeaveDevice;
 import com.google.android.apps.weave.apis.data.responses.Response;
-import com.google.android.apps.weave.framework.apis.Weave;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Handles the RecyclerView displaying a list of lights, handles interactions with Weave API.
@@ -46,10 +41,31 @@ public class LedSwitchesFragment extends Fragment implements OnLightToggledListe
     private static final String TAG = "LedSwitchesFragment";
 
     private LedSwitchesAdapter mAdapter;
+    private LedCommandSender mCommandSender;
+    private final DeviceStateCache mStateCache = DeviceStateCache.getInstance();
+
+    // Delay before re-reading the state to confirm commands the device hasn't completed yet.
+    private static final long CONFIRMATION_READ_DELAY_MS = 1000;
+    private final Handler mHandler = new Handler();
+    private final Runnable mConfirmationRead = new Runnable() {
+        @Override
+        public void run() {
+            readLightStates(false);
+        }
+    };
 
     // Instance of the WeaveApi.
     private WeaveApiClient mApiClient;
     private WeaveDevice mDevice;
+    // Re-reads the state when the device is changed elsewhere while this screen is visible.
+    private DeviceStateWatcher mStateWatcher;
+    // Polls the state instead when the device has no event feed.
+    private LedStatePoller mStatePoller;
+    private DeviceSnapshotStore mSnapshotStore;
+    // Plays LED patterns chosen from the menu.
+    private LedPatternEngine mPatternEngine;
+    private Snackbar mPatternStatus;
+    private String mPatternName;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -74,6 +90,41 @@ public class LedSwitchesFragment extends Fragment implements OnLightToggledListe
 
         initializeApiClient();
 
+        mCommandSender = new LedCommandSender(mApiClient, new LedCommandSender.Listener() {
+            @Override
+            public void onCommandSent(WeaveDevice device, int ledIndex, boolean lightOn) {
+                mAdapter.onCommandSent(ledIndex);
+            }
+
+            @Override
+            public void onCommandSucceeded(WeaveDevice device, int ledIndex, boolean lightOn) {
+                Log.i(TAG, "Success setting light state!");
+                mAdapter.onCommandSucceeded(ledIndex, lightOn);
+            }
+
+            @Override
+            public void onCommandAccepted(WeaveDevice device, int ledIndex, boolean lightOn) {
+                // Accepted but not applied yet; keep the switch pending until a state read
+                // confirms or rolls it back.
+                mAdapter.onCommandAccepted(ledIndex, lightOn);
+                scheduleConfirmationRead();
+            }
+
+            @Override
+            public boolean onCommandFailed(WeaveDevice device, int ledIndex, boolean lightOn,
+                    Response<CommandResult> result) {
+                // Toggles are flushed when the screen goes away, so the result may arrive
+                // after it is gone.
+                if (isAdded()) {
+                    Snackbar.make(LedSwitchesFragment.this.getView(),
+                            R.string.error_setting_state, Snackbar.LENGTH_LONG)
+                            .show();
+                }
+                // Only roll the switch back if the user hasn't changed it again since.
+                return mAdapter.onCommandFailed(ledIndex, lightOn);
+            }
+        });
+
         return layout;
     }
 
@@ -85,76 +136,174 @@ public class LedSwitchesFragment extends Fragment implements OnLightToggledListe
         if (mDevice == null) {
             throw new IllegalArgumentException("Required WeaveDevice argument is null.");
         }
+        mStateWatcher = new DeviceStateWatcher(mApiClient, mDevice,
+                new DeviceStateWatcher.Listener() {
+                    @Override
+                    public void onDeviceStateChanged() {
+                        readLightStates(false);
+                    }
+
+                    @Override
+                    public void onEventsUnavailable() {
+                        mStatePoller.start();
+                    }
+                });
+        mStatePoller = new LedStatePoller(mApiClient, mDevice,
+                new LedStatePoller.Listener() {
+                    @Override
+                    public void onLedStatesChanged(LedStates states) {
+                        mAdapter.reconcile(states);
+                    }
+                });
+        mPatternEngine = new LedPatternEngine(mApiClient, mDevice,
+                new LedPatternEngine.Listener() {
+                    @Override
+                    public void onStatesConfirmed(LedStates confirmed) {
+                        mAdapter.reconcile(confirmed);
+                    }
+
+                    @Override
+                    public void onFrameRate(float achievedFps, int targetFps) {
+                        mPatternStatus.setText(getString(R.string.pattern_status, mPatternName,
+                                achievedFps, targetFps));
+                    }
+                });
+        mSnapshotStore = DeviceSnapshotStore.getInstance(getContext());
+        showSnapshot();
+    }
+
+    /**
+     * Shows the LED states remembered from the last visit, until the first read completes.
+     */
+    private void showSnapshot() {
+        final String deviceId = mDevice.getId();
+        new AsyncTask<Void, Void, LedStates>() {
+            @Override
+            protected LedStates doInBackground(Void... params) {
+                DeviceSnapshotStore.DeviceSnapshot snapshot = mSnapshotStore.getDevice(deviceId);
+                return snapshot == null ? null : snapshot.leds;
+            }
+
+            @Override
+            protected void onPostExecute(LedStates leds) {
+                if (leds != null) {
+                    mAdapter.showSnapshot(leds);
+                }
+            }
+        }.executeOnExecutor(WeaveScheduler.getInstance()
+                .executor(WeaveScheduler.PRIORITY_STATE));
+    }
+
+    /**
+     * Remembers the LED states last confirmed by the device, for the next visit.
+     */
+    private void saveSnapshot() {
+        if (!mAdapter.hasReadStates()) {
+            return;
+        }
+        final String deviceId = mDevice.getId();
+        final LedStates confirmed = new LedStates(mAdapter.getConfirmedStates());
+        WeaveScheduler.getInstance().execute(WeaveScheduler.PRIORITY_BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                mSnapshotStore.putLedStates(deviceId, confirmed);
+            }
+        });
     }
 
     /**
-     * Generates an Api client instance, sets up a listener to react to devices being either
-     * discovered or lost.  All code related to initializing the Weave API client should go here.
+     * Picks up the app-wide Api client. All code related to initializing the Weave API client
+     * should go here.
      */
     private void initializeApiClient() {
-        mApiClient = new WeaveApiClient(getContext());
+        mApiClient = LedTogglerApplication.from(getContext()).getApiClient();
     }
 
     @Override
     public void onResume() {
         super.onResume();
         updateLightStates();
+        if (mStateWatcher.isUsingEvents()) {
+            mStateWatcher.start();
+        } else {
+            mStatePoller.start();
+        }
     }
 
-    /**
-     * Creates a Weave command for adjusting a single LED.
-     * @param ledIndex The index of the LED to adjust.
-     * @param lightOn Whether the LED should be on or not.
-     * @return an executable weave command to toggle the LED to the desired state.
-     */
-    public Command getSetLightStateCommand(int ledIndex, boolean lightOn) {
-        HashMap<String, Object> commandParams = new HashMap<>();
-        commandParams.put("_led", ledIndex);
-        commandParams.put("_on", lightOn);
-        return new Command()
-                .setName("_ledflasher._set")
-                .setParameters(commandParams);
+    @Override
+    public void onPause() {
+        stopPattern();
+        // Don't hold back toggles the user already made just because the screen is going away.
+        mCommandSender.flush();
+        mHandler.removeCallbacks(mConfirmationRead);
+        mStateWatcher.stop();
+        mStatePoller.stop();
+        saveSnapshot();
+        mStateWatcher.logStats();
+        mStatePoller.logStats();
+        mCommandSender.logStats();
+        mStateCache.logStats();
+        WeaveScheduler.getInstance().logStats();
+        super.onPause();
     }
 
     /**
-     * Sets the state of a single LED
+     * Sets the state of a single LED. Rapid changes to the same LED are coalesced, so only the
+     * latest requested state is sent to the device.
      * @param device The target weave device
      * @param ledIndex The index of the LED to adjust
      * @param lightState Whether the LED should be "on" or not.
      */
     public void setDeviceLightState(final WeaveDevice device, final int ledIndex,
                                     final boolean lightState) {
-        // Listview is 0-based, Led index in the brillo app is 1-based.
-        final int normalizedLedIndex = ledIndex + 1;
-
-        // Network call, punt off the main thread.
-        new AsyncTask<Void, Void, Response<CommandResult>>() {
+        mCommandSender.submit(device, ledIndex, lightState);
+    }
 
-            @Override
-            protected Response<CommandResult> doInBackground(Void... params) {
-                Command command = getSetLightStateCommand(normalizedLedIndex, lightState);
+    /**
+     * Plays an LED pattern on the device until {@link #stopPattern()} is called, the user
+     * toggles an LED, or the screen goes away. The achieved frame rate is shown while it plays.
+     * @param nameResId Name of the pattern, shown to the user.
+     */
+    public void startPattern(LedPatternEngine.Pattern pattern, int nameResId) {
+        if (!mAdapter.hasReadStates() || mAdapter.getItemCount() == 0) {
+            Snackbar.make(getView(), R.string.error_pattern_no_states, Snackbar.LENGTH_LONG)
+                    .show();
+            return;
+        }
+        // Manual toggles held back by the coalescing window would fight the pattern.
+        mCommandSender.flush();
+        mPatternName = getString(nameResId);
+        if (mPatternStatus == null) {
+            mPatternStatus = Snackbar.make(getView(), mPatternName, Snackbar.LENGTH_INDEFINITE);
+        } else {
+            mPatternStatus.setText(mPatternName);
+        }
+        mPatternStatus.show();
+        mPatternEngine.start(pattern, LedPatternEngine.DEFAULT_FPS,
+                mAdapter.getConfirmedStates());
+    }
 
-                return Weave.COMMAND_API.execute(
-                        mApiClient,
-                        device.getId(),
-                        command);
-            }
+    /**
+     * Stops the pattern playing, if any. The LEDs are left as the last frame sent them.
+     */
+    public void stopPattern() {
+        if (!mPatternEngine.isPlaying()) {
+            return;
+        }
+        mPatternEngine.stop();
+        mPatternEngine.logStats();
+        mPatternStatus.dismiss();
+        mPatternStatus = null;
+        // Catch up on frames still in flight when the pattern stopped.
+        scheduleConfirmationRead();
+    }
 
-            @Override
-            protected void onPostExecute(Response<CommandResult> result) {
-                super.onPostExecute(result);
-                if (result != null) {
-                    if (!result.isSuccess() || result.getError() != null) {
-                        Log.e(TAG, "Failure setting light state: " + result.getError());
-                        Snackbar.make(LedSwitchesFragment.this.getView(),
-                                R.string.error_setting_state, Snackbar.LENGTH_LONG)
-                                .show();
-                    } else {
-                        Log.i(TAG, "Success setting light state!");
-                    }
-                }
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    /**
+     * Schedules a state read to confirm pending switches. Calls in quick succession share one read.
+     */
+    private void scheduleConfirmationRead() {
+        mHandler.removeCallbacks(mConfirmationRead);
+        mHandler.postDelayed(mConfirmationRead, CONFIRMATION_READ_DELAY_MS);
     }
 
     /**
@@ -162,57 +311,88 @@ public class LedSwitchesFragment extends Fragment implements OnLightToggledListe
      * of all LEDs on the device.  The "post execute" step populates the UI with the correct number
      * of Led switches, each initialized to the correct state. E.g if the board has 3 LEDs in
      * positions "on, off, on", the UI will have 3 switches set to "on, off, on".
+     * States the app read recently are shown right away, and only read again once they are no
+     * longer fresh.
      */
     public void updateLightStates() {
-        // Network call, punt off the main thread.
-        new AsyncTask<Void, Void, Response<DeviceState>>() {
+        DeviceStateCache.Entry cached = mStateCache.load(mApiClient, mDevice,
+                WeaveScheduler.PRIORITY_STATE, newStateCallback(true));
+        if (cached == null) {
+            return;
+        }
+        if (cached.isFresh()) {
+            onLightStatesRead(cached.states);
+        } else {
+            // Shown dimmed until the read started above confirms it.
+            mAdapter.showSnapshot(cached.states);
+        }
+    }
 
-            @Override
-            protected Response<DeviceState> doInBackground(Void... params) {
-                return Weave.COMMAND_API.getState(mApiClient, mDevice.getId());
-            }
+    /**
+     * Reads the state of all LEDs from the device, even if states read recently are cached, as
+     * when the user asks for a refresh.
+     */
+    public void refreshLightStates() {
+        readLightStates(true);
+    }
+
+    /**
+     * Reads the state of all LEDs and updates the switches that changed.
+     * @param userVisible Whether failures should be reported to the user. Background reads fail
+     * silently; the next read will catch up.
+     */
+    private void readLightStates(boolean userVisible) {
+        mStateCache.refresh(mApiClient, mDevice, WeaveScheduler.PRIORITY_STATE,
+                newStateCallback(userVisible));
+    }
 
+    private DeviceStateCache.Callback newStateCallback(final boolean userVisible) {
+        return new DeviceStateCache.Callback() {
             @Override
-            protected void onPostExecute(Response<DeviceState> result) {
-                super.onPostExecute(result);
-                if (result != null) {
-                    if (!result.isSuccess() || result.getError() != null) {
-                        Log.e(TAG, "Failure querying for state. " + result.getError());
+            public void onStateRead(Response<DeviceState> result, LedStates states) {
+                // The cache outlives this screen, so the read may finish after it is gone.
+                if (result == null || !isAdded()) {
+                    return;
+                }
+                if (!result.isSuccess() || result.getError() != null) {
+                    Log.e(TAG, "Failure querying for state. " + result.getError());
+                    if (userVisible) {
                         Snackbar.make(LedSwitchesFragment.this.getView(),
                                 R.string.error_querying_state, Snackbar.LENGTH_LONG)
                                 .show();
                     }
-                    else {
-
-                        Map<String, Object> state = (Map<String, Object>)
-                                result.getSuccess().getStateValue("_ledflasher");
-                        if (state == null) {
-                            Log.i(TAG, "Command definition Doesn't contain led flasher. " +
-                                    "States are " + result.getSuccess().getStateNames().toString());
-                            Snackbar.make(LedSwitchesFragment.this.getView(),
-                                    R.string.error_unexpected_states, Snackbar.LENGTH_LONG)
-                                    .show();
-                        } else {
-                            Log.i(TAG, "Success querying device for LEDs! Populating now.");
-
-                            // Convert list of boolean states to Led Objects, use them
-                            // to populate a collection of UI switches for the user.
-                            ArrayList<Boolean> ledStates =  (ArrayList<Boolean>) state.get("_leds");
-                            mAdapter.clear();
-                            for (Boolean ledState : ledStates) {
-                                mAdapter.add(new Led(ledState));
-                            }
-
-                        }
+                } else if (states == null) {
+                    Log.i(TAG, "Command definition Doesn't contain led flasher. " +
+                            "States are " + result.getSuccess().getStateNames().toString());
+                    if (userVisible) {
+                        Snackbar.make(LedSwitchesFragment.this.getView(),
+                                R.string.error_unexpected_states, Snackbar.LENGTH_LONG)
+                                .show();
                     }
+                } else {
+                    Log.i(TAG, "Success querying device for LEDs! Populating now.");
+                    onLightStatesRead(states);
                 }
             }
+        };
+    }
 
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    private void onLightStatesRead(LedStates states) {
+        // Update the switches in place; only those whose LED changed state since the last
+        // refresh are rebound.
+        mAdapter.reconcile(states);
+        mStatePoller.onStateRead(states);
+        if (mAdapter.isAwaitingConfirmation()) {
+            // Keep reading until the device applies the accepted commands, or the switches are
+            // rolled back after LedStateTracker.MAX_CONFIRMATION_READS reads.
+            scheduleConfirmationRead();
+        }
     }
 
     @Override
     public void onLightToggled(int position, boolean newLightState) {
+        stopPattern();
+        mStatePoller.onUserInteraction();
         setDeviceLightState(mDevice, position, newLightState);
     }
 }
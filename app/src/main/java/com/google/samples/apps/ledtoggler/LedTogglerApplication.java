@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.app.Application;
+import android.content.Context;
+
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+
+/**
+ * Holds the single {@link WeaveApiClient} every screen of the app shares, bound to the
+ * application context so it outlives activities and configuration changes.
+ */
+public class LedTogglerApplication extends Application {
+
+    private WeaveApiClient mApiClient;
+
+    /** Returns the application the given context belongs to. */
+    public static LedTogglerApplication from(Context context) {
+        return (LedTogglerApplication) context.getApplicationContext();
+    }
+
+    /**
+     * Returns the client every Weave call of the app is made with.
+     */
+    public synchronized WeaveApiClient getApiClient() {
+        if (mApiClient == null) {
+            mApiClient = new WeaveApiClient(this);
+        }
+        return mApiClient;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ModelImageLoader.getInstance(this).trimMemory(level);
+    }
+}
@@ -37,10 +37,8 @@ import com.google.android.apps.weave.apis.data.WeaveApiClient;
 import com.google.android.apps.weave.apis.data.WeaveDevice;
 import com.google.android.apps.weave.apis.data.responses.Response;
 import com.google.android.apps.weave.apis.data.responses.ResultCode;
-import com.google.android.apps.weave.apis.device.DeviceLoaderCallbacks;
-import com.google.android.apps.weave.framework.apis.Weave;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
 
 /**
  * Shows a list of devices with the specified uiDeviceKind. On the first run, it starts the
@@ -80,29 +78,52 @@ public class MainActivity extends AppCompatActivity
     private WeaveApiClient mApiClient;
 
     private DeviceListAdapter mDeviceListAdapter;
-    private ConcurrentHashMap<String, ModelManifest> manifestCache;
-
-    private final DeviceLoaderCallbacks mDiscoveryListener = new DeviceLoaderCallbacks() {
+    private ModelManifestCache mManifestCache;
+    private ModelManifestLoader mManifestLoader;
+    private DeviceSnapshotStore mSnapshotStore;
+    private FleetCommandRunner mFleetRunner;
+    private StatePrefetcher mPrefetcher;
+    private Snackbar mFleetProgress;
+
+    private DiscoveryController mDiscovery;
+    // Set once the user has been through the device access flow, so discovery may run.
+    private boolean mDiscoveryAllowed;
+
+    private final DiscoveryController.Listener mDiscoveryListener =
+            new DiscoveryController.Listener() {
         @Override
-        public void onDevicesFound(WeaveDevice[] weaveDevices) {
-            Log.i(TAG, "Found Device(s)!");
-            for (final WeaveDevice device : weaveDevices) {
-                Log.i(TAG, "Found device: " + device.getName()
-                        + "\n\t" + device.getDescription() + "\n\t" + device.getAccountName());
-                addDevice(device);
-            }
+        public void onDeviceFound(WeaveDevice device) {
+            Log.i(TAG, "Found device: " + device.getName()
+                    + "\n\t" + device.getDescription() + "\n\t" + device.getAccountName());
+            DeviceRegistry.getInstance().put(device);
+            addDevice(device);
         }
 
         @Override
-        public void onDevicesLost(WeaveDevice[] weaveDevices) {
-            Log.i(TAG, "Lost Device(s)!");
-            for (WeaveDevice device : weaveDevices) {
-                Log.i(TAG, "Lost device: " + device.getName());
-                mDeviceListAdapter.remove(device);
-            }
-            mDeviceListAdapter.notifyDataSetChanged();
+        public void onDeviceLost(final WeaveDevice device) {
+            Log.i(TAG, "Lost device: " + device.getName());
+            DeviceRegistry.getInstance().remove(device.getId());
+            mDeviceListAdapter.remove(device);
+            WeaveScheduler.getInstance().execute(WeaveScheduler.PRIORITY_BACKGROUND,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            mSnapshotStore.removeDevice(device.getId());
+                        }
+                    });
         }
+    };
 
+    private final CircuitBreaker.Listener mCircuitListener = new CircuitBreaker.Listener() {
+        @Override
+        public void onCircuitStateChanged(final String deviceId, int state) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mDeviceListAdapter.refreshTransportStatus(deviceId);
+                }
+            });
+        }
     };
 
 
@@ -122,11 +143,14 @@ public class MainActivity extends AppCompatActivity
         RecyclerView.LayoutManager layoutManager = new LinearLayoutManager(this);
         recyclerView.setLayoutManager(layoutManager);
 
-        manifestCache = new ConcurrentHashMap<>();
+        mManifestCache = ModelManifestCache.getInstance(this);
+        mManifestLoader = ModelManifestLoader.getInstance(this);
+        mSnapshotStore = DeviceSnapshotStore.getInstance(this);
 
         // specify an adapter
-        mDeviceListAdapter = new DeviceListAdapter();
+        mDeviceListAdapter = new DeviceListAdapter(this);
         recyclerView.setAdapter(mDeviceListAdapter);
+        showSnapshot();
 
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
@@ -147,9 +171,47 @@ public class MainActivity extends AppCompatActivity
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Latencies were likely measured while another screen was shown.
+        mDeviceListAdapter.refreshTransportStatus();
+        if (mDiscoveryAllowed) {
+            mDiscovery.start();
+        }
+        if (mPrefetcher != null) {
+            mPrefetcher.start();
+            // Rows that stayed on screen aren't attached again; queue their devices too.
+            mDeviceListAdapter.setPrefetcher(mPrefetcher);
+        }
+        CircuitBreaker.getInstance().setListener(mCircuitListener);
+    }
+
+    @Override
+    public void onUserInteraction() {
+        super.onUserInteraction();
+        if (mDiscovery != null) {
+            mDiscovery.onUserActivity();
+        }
+    }
+
     @Override
     public void onPause() {
+        CircuitBreaker.getInstance().setListener(null);
         stopDiscovery();
+        if (mDiscovery != null) {
+            mDiscovery.logStats();
+        }
+        if (mPrefetcher != null) {
+            mPrefetcher.stop();
+            mPrefetcher.logStats();
+        }
+        mManifestCache.logStats();
+        mManifestLoader.logStats();
+        ModelImageLoader.getInstance(this).logStats();
+        WeaveScheduler.getInstance().logStats();
+        TransportMonitor.getInstance().logStats();
+        CircuitBreaker.getInstance().logStats();
         super.onPause();
     }
 
@@ -158,6 +220,7 @@ public class MainActivity extends AppCompatActivity
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        DebugActivity.prepareMenu(menu);
         return true;
     }
 
@@ -170,11 +233,76 @@ public class MainActivity extends AppCompatActivity
             case R.id.action_authorize_more_devices:
                 requestDeviceAccess(false);
                 return true;
+            case R.id.action_debug:
+                DebugActivity.start(this);
+                return true;
+            case R.id.action_all_leds_off:
+                setAllLeds(false);
+                return true;
+            case R.id.action_all_leds_on:
+                setAllLeds(true);
+                return true;
 
         }
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mFleetRunner != null) {
+            mFleetRunner.cancel();
+        }
+        if (mDiscovery != null) {
+            mDiscovery.release();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Turns every LED of every listed device on or off, showing progress as each device finishes.
+     */
+    private void setAllLeds(boolean lightOn) {
+        if (mFleetRunner == null) {
+            return;
+        }
+        List<WeaveDevice> devices = mDeviceListAdapter.getDevices();
+        if (devices.isEmpty()) {
+            Snackbar.make(findViewById(R.id.devices_list), R.string.fleet_no_devices,
+                    Snackbar.LENGTH_LONG).show();
+            return;
+        }
+        final View root = findViewById(R.id.devices_list);
+        mFleetProgress = Snackbar.make(root,
+                getString(R.string.fleet_progress, 0, devices.size(), 0),
+                Snackbar.LENGTH_INDEFINITE);
+        mFleetProgress.show();
+        mFleetRunner.setAllLeds(devices, lightOn, new FleetCommandRunner.Listener() {
+            private int mFailed;
+
+            @Override
+            public void onDeviceFinished(FleetCommandRunner.DeviceResult result, int finished,
+                    int total) {
+                if (result.isSuccess()) {
+                    Log.i(TAG, "Fleet: " + result.device.getName() + " done in "
+                            + result.elapsedMs + "ms, " + result.commandsSent + " commands");
+                } else {
+                    mFailed++;
+                    Log.e(TAG, "Fleet: " + result.device.getName() + " failed after "
+                            + result.elapsedMs + "ms: " + result.error);
+                }
+                mFleetProgress.setText(getString(R.string.fleet_progress, finished, total,
+                        mFailed));
+            }
+
+            @Override
+            public void onFleetFinished(int total, int failed, long wallClockMs) {
+                mFleetProgress.dismiss();
+                Snackbar.make(root, getString(R.string.fleet_done, total,
+                        wallClockMs / 1000f, failed), Snackbar.LENGTH_LONG).show();
+            }
+        });
+    }
+
     @Override
     public void onTosRejected() {
         // If the user rejected TOS, exit the app, as there's absolutely nothing available
@@ -199,7 +327,12 @@ public class MainActivity extends AppCompatActivity
             finish();
             return;
         }
-        mApiClient = new WeaveApiClient(this);
+        mApiClient = LedTogglerApplication.from(this).getApiClient();
+        mFleetRunner = new FleetCommandRunner(mApiClient);
+        mDiscovery = new DiscoveryController(mApiClient, mDiscoveryListener);
+        mPrefetcher = new StatePrefetcher(mApiClient);
+        mPrefetcher.start();
+        mDeviceListAdapter.setPrefetcher(mPrefetcher);
 
         if (isFirstRun()) {
             requestDeviceAccess(false);
@@ -217,9 +350,8 @@ public class MainActivity extends AppCompatActivity
                     CLOUD_PROJECT_NUMBER)
                 .build();
 
-        Response<Intent> accessResponse = Weave
-                .APP_ACCESS_API.getRequestAccessIntent(mApiClient,
-                        request);
+        Response<Intent> accessResponse = WeaveGateway.getInstance()
+                .getRequestAccessIntent(mApiClient, request);
         if (accessResponse.isSuccess()) {
             Log.d(TAG, "Successfully created RequestAccessIntent: " + accessResponse.getSuccess());
             startActivityForResult(accessResponse.getSuccess(), REQUEST_CODE_DEVICE_ACCESS);
@@ -279,10 +411,13 @@ public class MainActivity extends AppCompatActivity
 
     /** Begins a scan for weave-accessible devices.  Searches for both cloud devices associated with
      * the user's account, and provisioned weave devices sitting on the same network.
+     * Discovery is then duty-cycled by the {@link DiscoveryController}, and resumes every time
+     * the activity does.
      */
     public void startDiscovery() {
-        if (mApiClient != null) {
-            Weave.DEVICE_API.startLoading(mApiClient, mDiscoveryListener);
+        if (mDiscovery != null) {
+            mDiscoveryAllowed = true;
+            mDiscovery.start();
         }
     }
 
@@ -291,37 +426,79 @@ public class MainActivity extends AppCompatActivity
      * as soon as further discovery is no longer needed.
      */
     public void stopDiscovery() {
-        if (mApiClient != null) {
-            Weave.DEVICE_API.stopLoading(mApiClient, mDiscoveryListener);
+        if (mDiscovery != null) {
+            mDiscovery.stop();
         }
     }
 
+    /**
+     * Shows the devices known from the last run right away, until discovery finds them again.
+     */
+    private void showSnapshot() {
+        new AsyncTask<Void, Void, List<DeviceSnapshotStore.DeviceSnapshot>>() {
+            @Override
+            protected List<DeviceSnapshotStore.DeviceSnapshot> doInBackground(Void... params) {
+                return mSnapshotStore.getDevices();
+            }
+
+            @Override
+            protected void onPostExecute(List<DeviceSnapshotStore.DeviceSnapshot> snapshots) {
+                for (DeviceSnapshotStore.DeviceSnapshot snapshot : snapshots) {
+                    mDeviceListAdapter.addStale(snapshot);
+                }
+            }
+        }.executeOnExecutor(WeaveScheduler.getInstance()
+                .executor(WeaveScheduler.PRIORITY_STATE));
+    }
+
     private void addDevice(final WeaveDevice device) {
         // We don't really need the ModelManifest except to show more information to the user,
         // like the device image and device type. But since we use it, we need to fetch it off
         // the main thread, because it will potentially trigger a network call.
-        new AsyncTask<Void, Void, ModelManifest>() {
+        // A manifest cached on disk by a previous run is shown right away, and refreshed from
+        // the network only if it has gone stale.
+        new AsyncTask<Void, ModelManifest, ModelManifest>() {
 
             @Override
             protected ModelManifest doInBackground(Void... params) {
+                ModelManifest manifest = loadManifest();
+                mSnapshotStore.putDevice(device, manifest);
+                return manifest;
+            }
+
+            private ModelManifest loadManifest() {
                 String manifestId = device.getModelManifestId();
-                ModelManifest manifest = manifestCache.get(manifestId);
-                if (manifest == null) {
-                    manifest = Weave.DEVICE_API.getModelManifest(mApiClient, manifestId)
-                            .getSuccess();
-                    if (manifest != null) {
-                        manifestCache.put(manifestId, manifest);
+                if (manifestId == null) {
+                    return null;
+                }
+                ModelManifestCache.Entry cached = mManifestCache.get(manifestId);
+                if (cached != null) {
+                    if (!cached.isStale()) {
+                        return cached.manifest;
                     }
+                    publishProgress(cached.manifest);
                 }
-                return manifest;
+                // Many devices usually share a model, so concurrent fetches of the same manifest
+                // are collapsed into one network call by the loader, which also caches it.
+                ModelManifest manifest = mManifestLoader.fetch(mApiClient, manifestId)
+                        .getSuccess();
+                if (manifest != null) {
+                    return manifest;
+                }
+                return cached == null ? null : cached.manifest;
+            }
+
+            @Override
+            protected void onProgressUpdate(ModelManifest... staleManifest) {
+                mDeviceListAdapter.add(device, staleManifest[0]);
             }
 
             @Override
             protected void onPostExecute(ModelManifest manifest) {
                 mDeviceListAdapter.add(device, manifest);
-                mDeviceListAdapter.notifyDataSetChanged();
             }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }.executeOnExecutor(WeaveScheduler.getInstance()
+                .executor(WeaveScheduler.PRIORITY_BACKGROUND));
     }
 
 }
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the model images that {@link com.google.android.apps.weave.apis.data.ModelManifest}s
+ * point to, for the device list.
+ *
+ * Images are downloaded once into an on-disk cache that survives process restarts, and decoded
+ * downsampled to the size they are shown at, so a large artwork never costs more memory than its
+ * thumbnail. Decoded bitmaps are kept in an in-memory LRU bounded in bytes. Many devices usually
+ * share a model, so concurrent loads of the same image are collapsed into one, and a load is
+ * abandoned once every request waiting on it has been cancelled.
+ *
+ * {@link #load} and {@link Request#cancel()} must be called from the main thread.
+ */
+public class ModelImageLoader {
+    private static final String TAG = ModelImageLoader.class.getSimpleName();
+
+    /** Default upper bound of the decoded bitmaps kept in memory. */
+    public static final int DEFAULT_MEMORY_BUDGET_BYTES = 4 * 1024 * 1024;
+    /** Default upper bound of the downloaded images kept on disk. */
+    public static final long DEFAULT_DISK_BUDGET_BYTES = 8 * 1024 * 1024;
+
+    private static final String CACHE_DIRECTORY = "model_images";
+    private static final int TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(15);
+
+    private static ModelImageLoader sInstance;
+
+    /**
+     * Receives a loaded image on the main thread. Not called if the request was cancelled.
+     */
+    public interface Callback {
+        /**
+         * @param bitmap The image, or null if it could not be downloaded or decoded.
+         */
+        void onImageLoaded(Bitmap bitmap);
+    }
+
+    /**
+     * A pending image load, to be cancelled when its result is no longer wanted, such as when
+     * the row it was for is recycled.
+     */
+    public class Request {
+        private final Load mLoad;
+        private final Callback mCallback;
+
+        Request(Load load, Callback callback) {
+            mLoad = load;
+            mCallback = callback;
+        }
+
+        public void cancel() {
+            if (!mLoad.callbacks.remove(mCallback)) {
+                return;
+            }
+            mCancelled++;
+            if (mLoad.callbacks.isEmpty() && mLoads.get(mLoad.key) == mLoad) {
+                // Nobody waits on the image any more; skip the download or decode if not begun.
+                mLoads.remove(mLoad.key);
+                mLoad.task.cancel(false);
+            }
+        }
+    }
+
+    /** An image being loaded, and the callbacks waiting on it. */
+    private static class Load {
+        final String key;
+        final ArrayList<Callback> callbacks = new ArrayList<>();
+        AsyncTask<Void, Void, Bitmap> task;
+
+        Load(String key) {
+            this.key = key;
+        }
+    }
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDirectory;
+    private final long mDiskBudgetBytes;
+    private final Object mDiskLock = new Object();
+    // Loads in flight by cache key. Only touched on the main thread.
+    private final HashMap<String, Load> mLoads = new HashMap<>();
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mDownloads = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mMemoryEvictions = new AtomicLong();
+    private final AtomicLong mDiskEvictions = new AtomicLong();
+    private long mCollapsed;
+    private long mCancelled;
+
+    /**
+     * Returns the process-wide loader with the default budgets.
+     */
+    public static synchronized ModelImageLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ModelImageLoader(
+                    new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY),
+                    DEFAULT_MEMORY_BUDGET_BYTES, DEFAULT_DISK_BUDGET_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param directory Directory for the downloaded images. Created if needed.
+     * @param memoryBudgetBytes Upper bound of the decoded bitmaps kept in memory.
+     * @param diskBudgetBytes Upper bound of the downloaded images; oldest files are evicted first.
+     */
+    public ModelImageLoader(File directory, int memoryBudgetBytes, long diskBudgetBytes) {
+        mDirectory = directory;
+        mDiskBudgetBytes = diskBudgetBytes;
+        mMemoryCache = new LruCache<String, Bitmap>(memoryBudgetBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                                        Bitmap newValue) {
+                if (evicted) {
+                    mMemoryEvictions.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the image decoded for the given size if it is in memory, or null.
+     */
+    public Bitmap getCached(String url, int widthPx, int heightPx) {
+        Bitmap bitmap = mMemoryCache.get(keyOf(url, widthPx, heightPx));
+        if (bitmap != null) {
+            mMemoryHits.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Loads an image in the background lane, from disk or else the network, and decodes it to
+     * no less than the given size. Check {@link #getCached} first, to show images in memory
+     * without a round trip through the scheduler.
+     */
+    public Request load(final String url, final int widthPx, final int heightPx,
+            Callback callback) {
+        final String key = keyOf(url, widthPx, heightPx);
+        Load load = mLoads.get(key);
+        if (load != null) {
+            mCollapsed++;
+            load.callbacks.add(callback);
+            return new Request(load, callback);
+        }
+        final Load newLoad = new Load(key);
+        newLoad.callbacks.add(callback);
+        mLoads.put(key, newLoad);
+        newLoad.task = new AsyncTask<Void, Void, Bitmap>() {
+            @Override
+            protected Bitmap doInBackground(Void... params) {
+                Bitmap bitmap = mMemoryCache.get(key);
+                if (bitmap != null) {
+                    mMemoryHits.incrementAndGet();
+                    return bitmap;
+                }
+                File file = fetch(url, this);
+                if (file == null || isCancelled()) {
+                    return null;
+                }
+                bitmap = decode(file, widthPx, heightPx);
+                if (bitmap == null) {
+                    mFailures.incrementAndGet();
+                    Log.w(TAG, "Could not decode model image " + url);
+                    file.delete();
+                    return null;
+                }
+                mMemoryCache.put(key, bitmap);
+                return bitmap;
+            }
+
+            @Override
+            protected void onPostExecute(Bitmap bitmap) {
+                mLoads.remove(key);
+                ArrayList<Callback> callbacks = new ArrayList<>(newLoad.callbacks);
+                // Requests that finished can't be cancelled any more.
+                newLoad.callbacks.clear();
+                for (Callback waiting : callbacks) {
+                    waiting.onImageLoaded(bitmap);
+                }
+            }
+        }.executeOnExecutor(WeaveScheduler.getInstance()
+                .executor(WeaveScheduler.PRIORITY_BACKGROUND));
+        return new Request(newLoad, callback);
+    }
+
+    /**
+     * Releases decoded bitmaps when the system runs low on memory. The disk cache is kept.
+     * @param level The level passed to {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mMemoryCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            // LruCache.trimToSize() needs API 17. The snapshot is in least recently used order.
+            int targetSize = mMemoryCache.maxSize() / 2;
+            for (String url : mMemoryCache.snapshot().keySet()) {
+                if (mMemoryCache.size() <= targetSize) {
+                    break;
+                }
+                mMemoryCache.remove(url);
+            }
+        }
+    }
+
+    /**
+     * Returns the downloaded image, downloading it unless it is on disk already, or null if it
+     * could not be downloaded or the task was cancelled before it was.
+     */
+    private File fetch(String url, AsyncTask<?, ?, ?> task) {
+        File file = fileFor(url);
+        if (file == null) {
+            return null;
+        }
+        synchronized (mDiskLock) {
+            if (file.exists()) {
+                mDiskHits.incrementAndGet();
+                // Keeps recently shown images from being evicted first.
+                file.setLastModified(System.currentTimeMillis());
+                return file;
+            }
+            if (task.isCancelled() || (!mDirectory.isDirectory() && !mDirectory.mkdirs())) {
+                return null;
+            }
+        }
+        // Downloaded outside the lock, so images already on disk aren't held up by the network.
+        mDownloads.incrementAndGet();
+        try {
+            download(url, file);
+        } catch (IOException e) {
+            mFailures.incrementAndGet();
+            Log.w(TAG, "Could not download model image " + url, e);
+            return null;
+        }
+        synchronized (mDiskLock) {
+            trimDisk();
+        }
+        return file.exists() ? file : null;
+    }
+
+    private void download(String url, File file) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        // Written under a temporary name, so an interrupted download is never decoded.
+        File partial = File.createTempFile("download", ".part", mDirectory);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + connection.getResponseCode());
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                FileOutputStream out = new FileOutputStream(partial);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (!partial.renameTo(file)) {
+                throw new IOException("Could not rename " + partial);
+            }
+        } finally {
+            partial.delete();
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Decodes an image file, skipping pixels so the bitmap is no more than twice the requested
+     * size in either dimension.
+     */
+    private static Bitmap decode(File file, int widthPx, int heightPx) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= widthPx
+                && options.outHeight / (sampleSize * 2) >= heightPx) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    /** Deletes the least recently used files until the disk cache fits its budget. */
+    private void trimDisk() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (totalBytes <= mDiskBudgetBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && totalBytes > mDiskBudgetBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                totalBytes -= length;
+                mDiskEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private File fileFor(String url) {
+        try {
+            // URLs can be longer than file names may be.
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return null;
+        }
+    }
+
+    private static String keyOf(String url, int widthPx, int heightPx) {
+        return widthPx + "x" + heightPx + " " + url;
+    }
+
+    /** Returns a one-line summary of the loader counters. */
+    public String describe() {
+        return mMemoryCache.size() / 1024 + "KB of " + mMemoryCache.maxSize() / 1024
+                + "KB in memory, memory hits " + mMemoryHits + ", disk hits " + mDiskHits
+                + ", downloads " + mDownloads + ", failures " + mFailures + ", collapsed "
+                + mCollapsed + ", cancelled " + mCancelled + ", memory evictions "
+                + mMemoryEvictions + ", disk evictions " + mDiskEvictions;
+    }
+
+    /** Logs the loader counters. */
+    public void logStats() {
+        Log.i(TAG, describe());
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.apps.weave.apis.data.ModelManifest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier cache of {@link ModelManifest}s: a size-bounded in-memory LRU in front of an on-disk
+ * store that survives process restarts. Entries older than the time-to-live are still returned,
+ * flagged as stale, so callers can show them right away while they refresh them in the
+ * background.
+ *
+ * Lookups may hit the disk, so they should be made off the main thread.
+ */
+public class ModelManifestCache {
+    private static final String TAG = ModelManifestCache.class.getSimpleName();
+
+    public static final long DEFAULT_TTL_MS = TimeUnit.DAYS.toMillis(1);
+    public static final int DEFAULT_MEMORY_BUDGET_BYTES = 64 * 1024;
+    public static final long DEFAULT_DISK_BUDGET_BYTES = 256 * 1024;
+
+    private static final String CACHE_DIRECTORY = "manifests";
+    private static final String CHARSET = "UTF-8";
+
+    private static ModelManifestCache sInstance;
+
+    /**
+     * A cached manifest together with the time it was fetched from the network.
+     */
+    public static class Entry {
+        public final ModelManifest manifest;
+        public final long fetchedAtMs;
+        private final long mTtlMs;
+
+        Entry(ModelManifest manifest, long fetchedAtMs, long ttlMs) {
+            this.manifest = manifest;
+            this.fetchedAtMs = fetchedAtMs;
+            mTtlMs = ttlMs;
+        }
+
+        /** Whether this entry is older than the cache's time-to-live and should be refreshed. */
+        public boolean isStale() {
+            return System.currentTimeMillis() - fetchedAtMs > mTtlMs;
+        }
+    }
+
+    private final LruCache<String, Entry> mMemoryCache;
+    private final File mDirectory;
+    private final long mTtlMs;
+    private final long mDiskBudgetBytes;
+    private final Object mDiskLock = new Object();
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mMemoryEvictions = new AtomicLong();
+    private final AtomicLong mDiskEvictions = new AtomicLong();
+
+    /**
+     * Returns the process-wide cache with the default budgets and time-to-live.
+     */
+    public static synchronized ModelManifestCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ModelManifestCache(
+                    new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY),
+                    DEFAULT_TTL_MS, DEFAULT_MEMORY_BUDGET_BYTES, DEFAULT_DISK_BUDGET_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param directory Directory for the on-disk tier. Created if needed.
+     * @param ttlMs Age after which entries are reported as stale.
+     * @param memoryBudgetBytes Approximate upper bound of the in-memory tier.
+     * @param diskBudgetBytes Upper bound of the on-disk tier; oldest files are evicted first.
+     */
+    public ModelManifestCache(File directory, long ttlMs, int memoryBudgetBytes,
+                              long diskBudgetBytes) {
+        mDirectory = directory;
+        mTtlMs = ttlMs;
+        mDiskBudgetBytes = diskBudgetBytes;
+        mMemoryCache = new LruCache<String, Entry>(memoryBudgetBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return estimateSize(key, entry.manifest);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue,
+                                        Entry newValue) {
+                if (evicted) {
+                    mMemoryEvictions.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the cached manifest for the given id, or null if neither tier has it. Stale
+     * entries are returned too; check {@link Entry#isStale()}.
+     */
+    public Entry get(String manifestId) {
+        Entry entry = mMemoryCache.get(manifestId);
+        if (entry != null) {
+            mMemoryHits.incrementAndGet();
+            return entry;
+        }
+        entry = readFromDisk(manifestId);
+        if (entry != null) {
+            mDiskHits.incrementAndGet();
+            mMemoryCache.put(manifestId, entry);
+            return entry;
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores a freshly fetched manifest in both tiers.
+     */
+    public void put(String manifestId, ModelManifest manifest) {
+        Entry entry = new Entry(manifest, System.currentTimeMillis(), mTtlMs);
+        mMemoryCache.put(manifestId, entry);
+        writeToDisk(manifestId, entry);
+    }
+
+    public long getMemoryHitCount() {
+        return mMemoryHits.get();
+    }
+
+    public long getDiskHitCount() {
+        return mDiskHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public long getEvictionCount() {
+        return mMemoryEvictions.get() + mDiskEvictions.get();
+    }
+
+    /** Logs the current hit, miss and eviction counters. */
+    public void logStats() {
+        Log.i(TAG, "Manifest cache memory hits: " + mMemoryHits + ", disk hits: " + mDiskHits
+                + ", misses: " + mMisses + ", memory evictions: " + mMemoryEvictions
+                + ", disk evictions: " + mDiskEvictions);
+    }
+
+    private Entry readFromDisk(String manifestId) {
+        synchronized (mDiskLock) {
+            File file = fileFor(manifestId);
+            if (file == null || !file.exists()) {
+                return null;
+            }
+            try {
+                JSONObject json = new JSONObject(readFile(file));
+                ModelManifest manifest = new ModelManifest();
+                manifest.setId(json.optString("id", manifestId));
+                manifest.setOemName(json.optString("oemName", null));
+                manifest.setModelName(json.optString("modelName", null));
+                manifest.setModelDescription(json.optString("modelDescription", null));
+                manifest.setDeviceKind(json.optString("deviceKind", null));
+                manifest.setDeviceImageUrl(json.optString("deviceImageUrl", null));
+                manifest.setConfirmationImageUrl(json.optString("confirmationImageUrl", null));
+                return new Entry(manifest, json.getLong("fetchedAt"), mTtlMs);
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Discarding unreadable cached manifest " + manifestId, e);
+                file.delete();
+                return null;
+            }
+        }
+    }
+
+    private void writeToDisk(String manifestId, Entry entry) {
+        synchronized (mDiskLock) {
+            File file = fileFor(manifestId);
+            if (file == null || (!mDirectory.isDirectory() && !mDirectory.mkdirs())) {
+                return;
+            }
+            ModelManifest manifest = entry.manifest;
+            try {
+                JSONObject json = new JSONObject()
+                        .put("id", manifest.getId())
+                        .put("oemName", manifest.getOemName())
+                        .put("modelName", manifest.getModelName())
+                        .put("modelDescription", manifest.getModelDescription())
+                        .put("deviceKind", manifest.getDeviceKind())
+                        .put("deviceImageUrl", manifest.getDeviceImageUrl())
+                        .put("confirmationImageUrl", manifest.getConfirmationImageUrl())
+                        .put("fetchedAt", entry.fetchedAtMs);
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(json.toString().getBytes(CHARSET));
+                } finally {
+                    out.close();
+                }
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Could not cache manifest " + manifestId, e);
+                file.delete();
+                return;
+            }
+            trimDisk();
+        }
+    }
+
+    /** Deletes the least recently written files until the disk tier fits its budget. */
+    private void trimDisk() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (totalBytes <= mDiskBudgetBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && totalBytes > mDiskBudgetBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                totalBytes -= length;
+                mDiskEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private File fileFor(String manifestId) {
+        try {
+            return new File(mDirectory, URLEncoder.encode(manifestId, CHARSET));
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        byte[] buffer = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < buffer.length) {
+                int read = in.read(buffer, offset, buffer.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file " + file);
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return new String(buffer, CHARSET);
+    }
+
+    private static int estimateSize(String key, ModelManifest manifest) {
+        // Strings dominate a manifest's footprint; two bytes per char plus object overhead.
+        int chars = key.length() + length(manifest.getId()) + length(manifest.getOemName())
+                + length(manifest.getModelName()) + length(manifest.getModelDescription())
+                + length(manifest.getDeviceKind()) + length(manifest.getDeviceImageUrl())
+                + length(manifest.getConfirmationImageUrl());
+        return 2 * chars + 128;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
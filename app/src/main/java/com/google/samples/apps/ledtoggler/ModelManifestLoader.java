@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.data.ModelManifest;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.responses.Response;
+import com.google.android.apps.weave.apis.data.responses.WeaveError;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches {@link ModelManifest}s from the network with at most one request per manifest id in
+ * flight. Callers asking for a manifest that is already being fetched wait for that request
+ * instead of starting their own, so discovering many devices of the same model costs a single
+ * network call. A failed fetch is remembered for a short while and returned to every caller
+ * in that window, rather than being retried immediately by each of them.
+ *
+ * Successful fetches are stored in the {@link ModelManifestCache}.
+ */
+public class ModelManifestLoader {
+    private static final String TAG = ModelManifestLoader.class.getSimpleName();
+
+    public static final long DEFAULT_FAILURE_TTL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private static ModelManifestLoader sInstance;
+
+    /** A failed fetch and the time it happened. */
+    private static class Failure {
+        final Response<ModelManifest> response;
+        final long failedAtMs;
+
+        Failure(Response<ModelManifest> response, long failedAtMs) {
+            this.response = response;
+            this.failedAtMs = failedAtMs;
+        }
+    }
+
+    private final ModelManifestCache mCache;
+    private final long mFailureTtlMs;
+    private final ConcurrentHashMap<String, FutureTask<Response<ModelManifest>>> mInFlight =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Failure> mFailures = new ConcurrentHashMap<>();
+
+    private final AtomicLong mFetches = new AtomicLong();
+    private final AtomicLong mJoined = new AtomicLong();
+    private final AtomicLong mFailureHits = new AtomicLong();
+
+    /**
+     * Returns the process-wide loader, backed by the process-wide {@link ModelManifestCache}.
+     */
+    public static synchronized ModelManifestLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ModelManifestLoader(ModelManifestCache.getInstance(context),
+                    DEFAULT_FAILURE_TTL_MS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param cache Cache that successful fetches are written to.
+     * @param failureTtlMs How long a failed fetch is returned to callers before retrying.
+     */
+    public ModelManifestLoader(ModelManifestCache cache, long failureTtlMs) {
+        mCache = cache;
+        mFailureTtlMs = failureTtlMs;
+    }
+
+    /**
+     * Fetches the manifest from the network, or joins a fetch of the same manifest that is
+     * already in flight. Blocks until the fetch completes, so it must not be called from the
+     * main thread.
+     */
+    public Response<ModelManifest> fetch(final WeaveApiClient apiClient,
+                                         final String manifestId) {
+        Failure failure = mFailures.get(manifestId);
+        if (failure != null) {
+            if (SystemClock.elapsedRealtime() - failure.failedAtMs < mFailureTtlMs) {
+                mFailureHits.incrementAndGet();
+                return failure.response;
+            }
+            mFailures.remove(manifestId, failure);
+        }
+
+        FutureTask<Response<ModelManifest>> task = new FutureTask<>(
+                new Callable<Response<ModelManifest>>() {
+                    @Override
+                    public Response<ModelManifest> call() {
+                        mFetches.incrementAndGet();
+                        Response<ModelManifest> response = WeaveGateway.getInstance()
+                                .getModelManifest(apiClient, manifestId);
+                        if (response.isSuccess() && response.getSuccess() != null) {
+                            mCache.put(manifestId, response.getSuccess());
+                        } else {
+                            Log.w(TAG, "Could not fetch manifest " + manifestId + ": "
+                                    + response.getError());
+                            mFailures.put(manifestId,
+                                    new Failure(response, SystemClock.elapsedRealtime()));
+                        }
+                        return response;
+                    }
+                });
+        FutureTask<Response<ModelManifest>> inFlight = mInFlight.putIfAbsent(manifestId, task);
+        if (inFlight == null) {
+            try {
+                task.run();
+            } finally {
+                mInFlight.remove(manifestId, task);
+            }
+            inFlight = task;
+        } else {
+            mJoined.incrementAndGet();
+        }
+
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.createError(WeaveError.fromException(e));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            Log.e(TAG, "Fetching manifest " + manifestId + " failed", cause);
+            return Response.createError(cause instanceof Exception
+                    ? WeaveError.fromException((Exception) cause)
+                    : WeaveError.fromMessage(String.valueOf(cause)));
+        }
+    }
+
+    /** Logs how many fetches were made, joined an in-flight fetch, or hit a recent failure. */
+    public void logStats() {
+        Log.i(TAG, "Manifest fetches: " + mFetches + ", joined in-flight: " + mJoined
+                + ", recent failures reused: " + mFailureHits);
+    }
+}
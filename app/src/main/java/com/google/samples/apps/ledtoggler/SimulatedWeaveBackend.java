@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.content.Intent;
+
+import com.google.android.apps.weave.apis.appaccess.AppAccessRequest;
+import com.google.android.apps.weave.apis.data.Command;
+import com.google.android.apps.weave.apis.data.CommandResult;
+import com.google.android.apps.weave.apis.data.DeviceState;
+import com.google.android.apps.weave.apis.data.EventResult;
+import com.google.android.apps.weave.apis.data.EventResultList;
+import com.google.android.apps.weave.apis.data.ModelManifest;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+import com.google.android.apps.weave.apis.data.responses.ResultCode;
+import com.google.android.apps.weave.apis.data.responses.WeaveError;
+import com.google.android.apps.weave.apis.device.DeviceLoaderCallbacks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the Weave APIs: a fleet of {@code _ledflasher} boards that never
+ * leave memory. Calls take a log-normally distributed time, fail at a configurable rate, and
+ * devices come and go at a configurable rate, so the app's performance features can be measured
+ * without boards, a cloud project or a network. Its only Android dependency is the
+ * {@link Intent} type in {@link #getRequestAccessIntent}, which it never creates, so it also
+ * runs on a desktop JVM against the Android stub jar, as in the benchmark module. Thread-safe.
+ */
+public class SimulatedWeaveBackend implements WeaveBackend {
+    public static final String MODEL_MANIFEST_ID = "simulatedLedFlasher";
+
+    private static final String DEVICE_ID_PREFIX = "simulated-";
+    private static final String COMMAND_STATE_DONE = "done";
+    private static final String COMMAND_STATE_ERROR = "error";
+    private static final String EVENT_COMMAND_UPDATED = "commandUpdated";
+    /** Events kept per device, newest last. */
+    private static final int MAX_EVENTS = 20;
+    private static final int[] FAILURE_CODES = {ResultCode.ERROR, ResultCode.EXCEPTION};
+
+    /** What to simulate. The defaults resemble a handful of boards on a good LAN. */
+    public static class Config {
+        int deviceCount = 8;
+        int ledCount = 4;
+        long latencyMedianMs = 60;
+        double latencySpread = 0.5;
+        long maxLatencyMs = 10000;
+        double failureRate = 0.01;
+        long discoveryDelayMs = 300;
+        long churnIntervalMs = 0;
+        long seed = 1;
+
+        public Config setDeviceCount(int deviceCount) {
+            this.deviceCount = deviceCount;
+            return this;
+        }
+
+        public Config setLedCount(int ledCount) {
+            this.ledCount = ledCount;
+            return this;
+        }
+
+        /**
+         * Sets the latency of every call, drawn from a log-normal distribution.
+         * @param medianMs The median latency.
+         * @param spread The standard deviation of the latency's logarithm; 0 makes every call
+         * take exactly {@code medianMs}, 1 puts the 99th percentile at about 10x the median.
+         * @param maxMs Upper bound of any single call.
+         */
+        public Config setLatency(long medianMs, double spread, long maxMs) {
+            this.latencyMedianMs = medianMs;
+            this.latencySpread = spread;
+            this.maxLatencyMs = maxMs;
+            return this;
+        }
+
+        /** Sets the fraction, from 0 to 1, of calls that fail. */
+        public Config setFailureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        /** Sets how long after discovery starts the present devices are reported. */
+        public Config setDiscoveryDelayMs(long discoveryDelayMs) {
+            this.discoveryDelayMs = discoveryDelayMs;
+            return this;
+        }
+
+        /**
+         * Sets how often a random device is lost, or found again if it was lost; 0 disables
+         * churn.
+         */
+        public Config setChurnIntervalMs(long churnIntervalMs) {
+            this.churnIntervalMs = churnIntervalMs;
+            return this;
+        }
+
+        /** Sets the seed of all random choices, so that runs can be repeated. */
+        public Config setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return deviceCount + " devices x " + ledCount + " LEDs, latency median "
+                    + latencyMedianMs + "ms spread " + latencySpread + " max " + maxLatencyMs
+                    + "ms, failure rate " + failureRate + ", churn every "
+                    + (churnIntervalMs > 0 ? churnIntervalMs + "ms" : "never");
+        }
+    }
+
+    /** A simulated board. Guarded by its own lock. */
+    private static class SimulatedDevice {
+        final WeaveDevice device;
+        final LedStates leds;
+        final ArrayList<EventResult> events = new ArrayList<>();
+        boolean present = true;
+
+        SimulatedDevice(WeaveDevice device, int ledCount) {
+            this.device = device;
+            this.leds = new LedStates(ledCount);
+        }
+    }
+
+    private final Config mConfig;
+    private final Executor mCallbackExecutor;
+    private final Random mRandom;
+    private final LinkedHashMap<String, SimulatedDevice> mDevices = new LinkedHashMap<>();
+    private final ArrayList<DeviceLoaderCallbacks> mListeners = new ArrayList<>();
+    private final ScheduledThreadPoolExecutor mTimer;
+    private ScheduledFuture<?> mChurn;
+
+    private final AtomicLong mCommandIds = new AtomicLong();
+
+    /**
+     * @param config What to simulate. Later changes to it have no effect.
+     * @param callbackExecutor Executor that discovery callbacks are delivered on; the main
+     * thread in the app.
+     */
+    public SimulatedWeaveBackend(Config config, Executor callbackExecutor) {
+        mConfig = new Config()
+                .setDeviceCount(config.deviceCount)
+                .setLedCount(config.ledCount)
+                .setLatency(config.latencyMedianMs, config.latencySpread, config.maxLatencyMs)
+                .setFailureRate(config.failureRate)
+                .setDiscoveryDelayMs(config.discoveryDelayMs)
+                .setChurnIntervalMs(config.churnIntervalMs)
+                .setSeed(config.seed);
+        mCallbackExecutor = callbackExecutor;
+        mRandom = new Random(mConfig.seed);
+        for (int i = 0; i < mConfig.deviceCount; i++) {
+            WeaveDevice device = new WeaveDevice();
+            device.setId(DEVICE_ID_PREFIX + i);
+            device.setName("Simulated board " + (i + 1));
+            device.setDescription("Simulated _ledflasher board with " + mConfig.ledCount
+                    + " LEDs");
+            device.setModelManifestId(MODEL_MANIFEST_ID);
+            mDevices.put(device.getId(), new SimulatedDevice(device, mConfig.ledCount));
+        }
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SimulatedWeaveBackend");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Let the timer thread die while nothing is being discovered.
+        mTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    public Config getConfig() {
+        return mConfig;
+    }
+
+    /** Returns all simulated devices, whether currently present or not. */
+    public List<WeaveDevice> getDevices() {
+        ArrayList<WeaveDevice> devices = new ArrayList<>(mDevices.size());
+        for (SimulatedDevice simulated : mDevices.values()) {
+            devices.add(simulated.device);
+        }
+        return devices;
+    }
+
+    /**
+     * Returns a copy of the LED states of a device, as last set by a command, or null if there
+     * is no such device.
+     */
+    public LedStates getLedStates(String deviceId) {
+        SimulatedDevice simulated = mDevices.get(deviceId);
+        if (simulated == null) {
+            return null;
+        }
+        synchronized (simulated) {
+            return new LedStates(simulated.leds);
+        }
+    }
+
+    @Override
+    public Response<CommandResult> execute(WeaveApiClient apiClient, String deviceId,
+            Command command) {
+        SimulatedDevice simulated = mDevices.get(deviceId);
+        if (simulated == null) {
+            return Response.createError(WeaveError.fromCode(ResultCode.DEVICE_MISSING));
+        }
+        Response<CommandResult> failure = simulateCall(simulated);
+        if (failure != null) {
+            return failure;
+        }
+        if (!LedFlasher.COMMAND_SET.equals(command.getName())) {
+            return Response.createError(WeaveError.fromMessage(
+                    "Unsupported command " + command.getName()));
+        }
+        CommandResult result = new CommandResult()
+                .setId("simulated-command-" + mCommandIds.incrementAndGet())
+                .setName(command.getName())
+                .setParameters(command.getParameters());
+        Map<String, Object> params = command.getParameters();
+        Object led = params == null ? null : params.get(LedFlasher.PARAM_LED);
+        Object on = params == null ? null : params.get(LedFlasher.PARAM_ON);
+        synchronized (simulated) {
+            // Led index in the brillo app is 1-based.
+            int index = led instanceof Number ? ((Number) led).intValue() - 1 : -1;
+            if (index < 0 || index >= simulated.leds.size() || !(on instanceof Boolean)) {
+                return Response.createSuccess(result.setCommandState(COMMAND_STATE_ERROR));
+            }
+            simulated.leds.set(index, (Boolean) on);
+            simulated.events.add(new EventResult()
+                    .setId(result.getId())
+                    .setType(EVENT_COMMAND_UPDATED)
+                    .setDeviceId(deviceId)
+                    .setTimeMs(System.currentTimeMillis()));
+            if (simulated.events.size() > MAX_EVENTS) {
+                simulated.events.remove(0);
+            }
+        }
+        return Response.createSuccess(result.setCommandState(COMMAND_STATE_DONE));
+    }
+
+    @Override
+    public Response<DeviceState> getState(WeaveApiClient apiClient, String deviceId) {
+        SimulatedDevice simulated = mDevices.get(deviceId);
+        if (simulated == null) {
+            return Response.createError(WeaveError.fromCode(ResultCode.DEVICE_MISSING));
+        }
+        Response<DeviceState> failure = simulateCall(simulated);
+        if (failure != null) {
+            return failure;
+        }
+        ArrayList<Boolean> leds;
+        synchronized (simulated) {
+            leds = new ArrayList<>(simulated.leds.size());
+            for (int i = 0; i < simulated.leds.size(); i++) {
+                leds.add(simulated.leds.isOn(i));
+            }
+        }
+        HashMap<String, Object> ledFlasher = new HashMap<>(2);
+        ledFlasher.put(LedFlasher.STATE_LEDS, leds);
+        DeviceState state = new DeviceState();
+        state.setDeviceId(deviceId);
+        state.setStateValue(LedFlasher.TRAIT, ledFlasher);
+        return Response.createSuccess(state);
+    }
+
+    @Override
+    public Response<ModelManifest> getModelManifest(WeaveApiClient apiClient, String manifestId) {
+        Response<ModelManifest> failure = simulateCall(null);
+        if (failure != null) {
+            return failure;
+        }
+        if (!MODEL_MANIFEST_ID.equals(manifestId)) {
+            return Response.createError(WeaveError.fromMessage(
+                    "Unknown model manifest " + manifestId));
+        }
+        ModelManifest manifest = new ModelManifest();
+        manifest.setId(MODEL_MANIFEST_ID);
+        manifest.setOemName("Simulator");
+        manifest.setModelName("Simulated LED flasher");
+        manifest.setModelDescription("In-process _ledflasher board");
+        manifest.setDeviceKind("vendor");
+        return Response.createSuccess(manifest);
+    }
+
+    @Override
+    public Response<EventResultList> getEvents(WeaveApiClient apiClient, String deviceId) {
+        SimulatedDevice simulated = mDevices.get(deviceId);
+        if (simulated == null) {
+            return Response.createError(WeaveError.fromCode(ResultCode.DEVICE_MISSING));
+        }
+        Response<EventResultList> failure = simulateCall(simulated);
+        if (failure != null) {
+            return failure;
+        }
+        EventResultList events = new EventResultList();
+        synchronized (simulated) {
+            events.setEventResults(new ArrayList<>(simulated.events));
+        }
+        return Response.createSuccess(events);
+    }
+
+    @Override
+    public Response<Intent> getRequestAccessIntent(WeaveApiClient apiClient,
+            AppAccessRequest request) {
+        // Simulated devices need no access grant.
+        return Response.createError(WeaveError.fromCode(ResultCode.ACTION_UNAVAILABLE));
+    }
+
+    @Override
+    public synchronized void startLoading(WeaveApiClient apiClient,
+            final DeviceLoaderCallbacks callbacks) {
+        if (mListeners.contains(callbacks)) {
+            return;
+        }
+        mListeners.add(callbacks);
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reportPresentDevices(callbacks);
+            }
+        }, mConfig.discoveryDelayMs, TimeUnit.MILLISECONDS);
+        if (mChurn == null && mConfig.churnIntervalMs > 0) {
+            mChurn = mTimer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    churn();
+                }
+            }, mConfig.churnIntervalMs, mConfig.churnIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void stopLoading(WeaveApiClient apiClient,
+            DeviceLoaderCallbacks callbacks) {
+        mListeners.remove(callbacks);
+        if (mListeners.isEmpty() && mChurn != null) {
+            mChurn.cancel(false);
+            mChurn = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        int present = 0;
+        synchronized (this) {
+            for (SimulatedDevice simulated : mDevices.values()) {
+                if (simulated.present) {
+                    present++;
+                }
+            }
+        }
+        return "Simulator (" + present + " present): " + mConfig;
+    }
+
+    /**
+     * Waits for the simulated latency of a call, and decides whether it fails.
+     * @param simulated The called device, or null for calls that aren't made to a device.
+     * @return the failed response, or null if the call succeeds.
+     */
+    private <T> Response<T> simulateCall(SimulatedDevice simulated) {
+        long latencyMs = Math.min(mConfig.maxLatencyMs, Math.round(mConfig.latencyMedianMs
+                * Math.exp(mConfig.latencySpread * mRandom.nextGaussian())));
+        try {
+            Thread.sleep(latencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.createError(WeaveError.fromException(e));
+        }
+        if (simulated == null) {
+            if (mRandom.nextDouble() < mConfig.failureRate) {
+                return Response.createError(newFailure());
+            }
+            return null;
+        }
+        synchronized (this) {
+            if (!simulated.present) {
+                return Response.createError(WeaveError.fromCode(ResultCode.DEVICE_MISSING));
+            }
+        }
+        if (mRandom.nextDouble() < mConfig.failureRate) {
+            return Response.createError(newFailure());
+        }
+        return null;
+    }
+
+    private WeaveError newFailure() {
+        WeaveError error = WeaveError.fromCode(
+                FAILURE_CODES[mRandom.nextInt(FAILURE_CODES.length)]);
+        error.setMessage("Simulated failure");
+        return error;
+    }
+
+    private void reportPresentDevices(final DeviceLoaderCallbacks callbacks) {
+        final ArrayList<WeaveDevice> present = new ArrayList<>();
+        synchronized (this) {
+            for (SimulatedDevice simulated : mDevices.values()) {
+                if (simulated.present) {
+                    present.add(simulated.device);
+                }
+            }
+        }
+        if (present.isEmpty()) {
+            return;
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isLoading(callbacks)) {
+                    callbacks.onDevicesFound(present.toArray(new WeaveDevice[present.size()]));
+                }
+            }
+        });
+    }
+
+    /** Loses a random device, or finds it again if it was lost. */
+    private void churn() {
+        final SimulatedDevice simulated;
+        final boolean found;
+        final ArrayList<DeviceLoaderCallbacks> listeners;
+        synchronized (this) {
+            if (mDevices.isEmpty()) {
+                return;
+            }
+            simulated = new ArrayList<>(mDevices.values()).get(mRandom.nextInt(mDevices.size()));
+            simulated.present = !simulated.present;
+            found = simulated.present;
+            listeners = new ArrayList<>(mListeners);
+        }
+        final WeaveDevice[] devices = {simulated.device};
+        for (final DeviceLoaderCallbacks callbacks : listeners) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isLoading(callbacks)) {
+                        return;
+                    }
+                    if (found) {
+                        callbacks.onDevicesFound(devices);
+                    } else {
+                        callbacks.onDevicesLost(devices);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized boolean isLoading(DeviceLoaderCallbacks callbacks) {
+        return mListeners.contains(callbacks);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Computes the minimal insert, remove and change notifications that turn one sorted list into
+ * another. Both lists must be sorted by the same {@link Callback#compare} order, and items that
+ * compare as equal are considered to be the same item. Runs in linear time, so it's cheap
+ * enough to compute off the main thread for every batch of updates.
+ *
+ * Has no Android dependencies.
+ */
+public final class SortedListDiff {
+
+    /**
+     * Orders and compares the items of the diffed lists. {@link #compare} must return 0 if, and
+     * only if, both arguments represent the same item.
+     */
+    public interface Callback<T> extends Comparator<T> {
+        /** Whether the same item looks the same in both lists, so it needn't be rebound. */
+        boolean areContentsTheSame(T oldItem, T newItem);
+    }
+
+    /**
+     * Receives the notifications of a {@link Result}, in an order that can be applied directly
+     * to an adapter.
+     */
+    public interface UpdateListener {
+        void onInserted(int position, int count);
+
+        void onRemoved(int position, int count);
+
+        void onChanged(int position, int count);
+    }
+
+    private static final int INSERT = 0;
+    private static final int REMOVE = 1;
+    private static final int CHANGE = 2;
+
+    /**
+     * The notifications computed by {@link #diff}, as (type, position, count) triples.
+     */
+    public static final class Result {
+        private int[] mOps = new int[3 * 8];
+        private int mSize;
+
+        private void add(int type, int position) {
+            if (mSize > 0) {
+                int last = mSize - 3;
+                int lastType = mOps[last];
+                int lastPosition = mOps[last + 1];
+                int lastCount = mOps[last + 2];
+                // Removals happen at a fixed position; inserts and changes advance through it.
+                if (type == lastType && (type == REMOVE ? position == lastPosition
+                        : position == lastPosition + lastCount)) {
+                    mOps[last + 2]++;
+                    return;
+                }
+            }
+            if (mSize == mOps.length) {
+                mOps = Arrays.copyOf(mOps, mSize * 2);
+            }
+            mOps[mSize++] = type;
+            mOps[mSize++] = position;
+            mOps[mSize++] = 1;
+        }
+
+        /** Whether the lists were identical, so there's nothing to notify. */
+        public boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        /** Replays the notifications, in order, to the given listener. */
+        public void dispatchTo(UpdateListener listener) {
+            for (int i = 0; i < mSize; i += 3) {
+                switch (mOps[i]) {
+                    case INSERT:
+                        listener.onInserted(mOps[i + 1], mOps[i + 2]);
+                        break;
+                    case REMOVE:
+                        listener.onRemoved(mOps[i + 1], mOps[i + 2]);
+                        break;
+                    case CHANGE:
+                        listener.onChanged(mOps[i + 1], mOps[i + 2]);
+                        break;
+                }
+            }
+        }
+    }
+
+    private SortedListDiff() {
+    }
+
+    /**
+     * Computes the notifications that turn {@code oldList} into {@code newList}.
+     */
+    public static <T> Result diff(List<T> oldList, List<T> newList, Callback<T> callback) {
+        Result result = new Result();
+        int oldIndex = 0;
+        int newIndex = 0;
+        // Position in the list as it looks after the notifications emitted so far.
+        int position = 0;
+        int oldSize = oldList.size();
+        int newSize = newList.size();
+        while (oldIndex < oldSize || newIndex < newSize) {
+            int order;
+            if (oldIndex == oldSize) {
+                order = 1;
+            } else if (newIndex == newSize) {
+                order = -1;
+            } else {
+                order = callback.compare(oldList.get(oldIndex), newList.get(newIndex));
+            }
+            if (order < 0) {
+                result.add(REMOVE, position);
+                oldIndex++;
+            } else if (order > 0) {
+                result.add(INSERT, position);
+                newIndex++;
+                position++;
+            } else {
+                if (!callback.areContentsTheSame(oldList.get(oldIndex), newList.get(newIndex))) {
+                    result.add(CHANGE, position);
+                }
+                oldIndex++;
+                newIndex++;
+                position++;
+            }
+        }
+        return result;
+    }
+}
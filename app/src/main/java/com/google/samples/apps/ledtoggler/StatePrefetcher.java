@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.data.DeviceState;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Reads the LED states of devices shown in the device list, and of devices the user opened
+ * recently, into the {@link DeviceStateCache} before the user opens them, so the LED screen
+ * usually opens already populated.
+ *
+ * Prefetches are reads nobody is waiting on yet: they run in the background lane, at most
+ * {@link #MAX_CONCURRENT_READS} at a time, and hold off while user commands are queued or in
+ * flight. A device whose row scrolls off screen before its read started is dropped from the
+ * queue; a read already in flight can't be aborted, but still fills the cache.
+ *
+ * All methods must be called from the main thread.
+ */
+public class StatePrefetcher {
+    private static final String TAG = StatePrefetcher.class.getSimpleName();
+
+    /** Prefetch reads in flight at the same time, across all devices. */
+    public static final int MAX_CONCURRENT_READS = 2;
+    /** Recently opened devices that are prefetched even when not on screen. */
+    public static final int MAX_RECENT_DEVICES = 5;
+    // How long to hold off while user commands are being sent.
+    private static final long COMMAND_BACKOFF_MS = 500;
+
+    private final WeaveApiClient mApiClient;
+    private final DeviceStateCache mCache = DeviceStateCache.getInstance();
+    private final Handler mHandler = new Handler();
+    private final Runnable mPump = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    // Devices waiting to be prefetched, in the order they were requested.
+    private final LinkedHashMap<String, WeaveDevice> mQueue = new LinkedHashMap<>();
+    // Least recently opened first.
+    private final LinkedHashMap<String, WeaveDevice> mRecent = new LinkedHashMap<>();
+    private boolean mStarted;
+    private int mInFlight;
+
+    private long mRequested;
+    private long mReadsStarted;
+    private long mCancelled;
+    private long mSkipped;
+
+    private final DeviceStateCache.Callback mReadFinished = new DeviceStateCache.Callback() {
+        @Override
+        public void onStateRead(Response<DeviceState> result, LedStates states) {
+            mInFlight--;
+            pump();
+        }
+    };
+
+    public StatePrefetcher(WeaveApiClient apiClient) {
+        mApiClient = apiClient;
+    }
+
+    /**
+     * Starts prefetching, beginning with the recently opened devices. Call when the device list
+     * becomes visible.
+     */
+    public void start() {
+        mStarted = true;
+        ArrayList<WeaveDevice> recent = new ArrayList<>(mRecent.values());
+        // Most recently opened first.
+        for (int i = recent.size() - 1; i >= 0; i--) {
+            enqueue(recent.get(i));
+        }
+        pump();
+    }
+
+    /**
+     * Stops prefetching and drops the queue. Reads in flight still finish.
+     */
+    public void stop() {
+        mStarted = false;
+        mCancelled += mQueue.size();
+        mQueue.clear();
+        mHandler.removeCallbacks(mPump);
+    }
+
+    /** Queues a device whose row came on screen. */
+    public void onDeviceShown(WeaveDevice device) {
+        if (mStarted) {
+            enqueue(device);
+            pump();
+        }
+    }
+
+    /** Drops a device whose row went off screen, unless its read already started. */
+    public void onDeviceHidden(WeaveDevice device) {
+        if (mQueue.remove(device.getId()) != null) {
+            mCancelled++;
+        }
+    }
+
+    /** Remembers a device the user opened, to be prefetched the next time the list is shown. */
+    public void onDeviceOpened(WeaveDevice device) {
+        mRecent.remove(device.getId());
+        mRecent.put(device.getId(), device);
+        if (mRecent.size() > MAX_RECENT_DEVICES) {
+            mRecent.remove(mRecent.keySet().iterator().next());
+        }
+    }
+
+    private void enqueue(WeaveDevice device) {
+        if (!mQueue.containsKey(device.getId())) {
+            mRequested++;
+            mQueue.put(device.getId(), device);
+        }
+    }
+
+    private void pump() {
+        mHandler.removeCallbacks(mPump);
+        if (!mStarted || mQueue.isEmpty()) {
+            return;
+        }
+        CommandPipeline commands = CommandPipeline.getInstance();
+        if (commands.getInFlight() > 0 || commands.getQueued() > 0) {
+            // Never compete with the user's commands for threads or bandwidth.
+            mHandler.postDelayed(mPump, COMMAND_BACKOFF_MS);
+            return;
+        }
+        Iterator<WeaveDevice> iterator = mQueue.values().iterator();
+        while (mInFlight < MAX_CONCURRENT_READS && iterator.hasNext()) {
+            WeaveDevice device = iterator.next();
+            iterator.remove();
+            if (CircuitBreaker.getInstance().getState(device.getId())
+                    != CircuitBreaker.STATE_CLOSED
+                    || !mCache.prefetch(mApiClient, device, mReadFinished)) {
+                // Unreachable, fresh already, or being read by someone else.
+                mSkipped++;
+                continue;
+            }
+            mReadsStarted++;
+            mInFlight++;
+        }
+    }
+
+    /** Logs the prefetch counters. */
+    public void logStats() {
+        Log.i(TAG, "Prefetches requested: " + mRequested + ", started: " + mReadsStarted
+                + ", cancelled: " + mCancelled + ", skipped: " + mSkipped);
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.appaccess.AppAccessRequest;
+import com.google.android.apps.weave.apis.data.Command;
+import com.google.android.apps.weave.apis.data.CommandResult;
+import com.google.android.apps.weave.apis.data.DeviceState;
+import com.google.android.apps.weave.apis.data.EventResultList;
+import com.google.android.apps.weave.apis.data.ModelManifest;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+import com.google.android.apps.weave.apis.device.DeviceLoaderCallbacks;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives LED toggles through the app's real command path ({@link LedCommandSender}, and so the
+ * coalescer, pipeline, scheduler and gateway) against a {@link SimulatedWeaveBackend}, and
+ * reports throughput, end-to-end latency, queue depths, and commands that were lost or applied
+ * out of order. Toggles are either submitted at a steady rate to random LEDs, or all at once to
+ * every LED of every device, like a fleet action.
+ *
+ * While a run is in progress the gateway serves all calls from the simulator. All methods must
+ * be called from the main thread.
+ */
+public class ToggleLoadHarness {
+    private static final String TAG = ToggleLoadHarness.class.getSimpleName();
+
+    private static final long TICK_MS = 10;
+
+    /** Receives the report of a finished run. */
+    public interface Listener {
+        void onLoadTestFinished(String report);
+    }
+
+    /** What load to generate. */
+    public static class Config {
+        String name;
+        int deviceCount;
+        int ledCount;
+        int togglesPerSecond;
+        long durationMs;
+        boolean burst;
+        long drainTimeoutMs = 60000;
+        SimulatedWeaveBackend.Config simulator = new SimulatedWeaveBackend.Config();
+
+        /** Random toggling at a steady rate, as a user scripting rapid toggles would. */
+        public static Config sustained() {
+            Config config = new Config();
+            config.name = "sustained toggling";
+            config.deviceCount = 50;
+            config.ledCount = 16;
+            config.togglesPerSecond = 2000;
+            config.durationMs = 10000;
+            return config;
+        }
+
+        /** Every LED of 200 boards toggled at once, as an "all LEDs" fleet action would. */
+        public static Config fleetBurst() {
+            Config config = new Config();
+            config.name = "fleet burst";
+            config.deviceCount = 200;
+            config.ledCount = 8;
+            config.burst = true;
+            return config;
+        }
+    }
+
+    /** Per-LED bookkeeping of what was requested and when. */
+    private static class LedLoad {
+        boolean desired;
+        // Time of the oldest toggle not yet applied by a successful command, or -1.
+        long unconfirmedSinceMs = -1;
+    }
+
+    /**
+     * Passes calls through to the simulator, noting commands that complete out of the order
+     * they were sent in for their LED. Sends and completions are reported from the main thread;
+     * calls are made on the command lane's threads.
+     */
+    private static class OrderCheckingBackend implements WeaveBackend {
+        private final SimulatedWeaveBackend mSimulator;
+        // States sent to each LED, by device and LED, whose commands haven't completed yet.
+        private final HashMap<String, ArrayDeque<Boolean>> mIssued = new HashMap<>();
+        private long mReordered;
+
+        OrderCheckingBackend(SimulatedWeaveBackend simulator) {
+            mSimulator = simulator;
+        }
+
+        synchronized long getReordered() {
+            return mReordered;
+        }
+
+        private static String keyOf(String deviceId, int ledIndex) {
+            return deviceId + '/' + ledIndex;
+        }
+
+        /** Notes that a command setting an LED was sent, after every one sent to it before. */
+        synchronized void onCommandSent(String deviceId, int ledIndex, boolean lightOn) {
+            String key = keyOf(deviceId, ledIndex);
+            ArrayDeque<Boolean> issued = mIssued.get(key);
+            if (issued == null) {
+                issued = new ArrayDeque<>();
+                mIssued.put(key, issued);
+            }
+            issued.add(lightOn);
+        }
+
+        /** Notes that the oldest command sent to an LED has completed, retries included. */
+        synchronized void onCommandFinished(String deviceId, int ledIndex) {
+            ArrayDeque<Boolean> issued = mIssued.get(keyOf(deviceId, ledIndex));
+            if (issued != null) {
+                issued.poll();
+            }
+        }
+
+        @Override
+        public Response<CommandResult> execute(WeaveApiClient apiClient, String deviceId,
+                Command command) {
+            // The command's LED index is 1-based.
+            int ledIndex = ((Number) command.getParameters().get(LedFlasher.PARAM_LED))
+                    .intValue() - 1;
+            Object lightOn = command.getParameters().get(LedFlasher.PARAM_ON);
+            Response<CommandResult> result = mSimulator.execute(apiClient, deviceId, command);
+            synchronized (this) {
+                // Every attempt, retries included, must be at the command sent earliest.
+                ArrayDeque<Boolean> issued = mIssued.get(keyOf(deviceId, ledIndex));
+                if (issued == null || issued.isEmpty() || !issued.peek().equals(lightOn)) {
+                    mReordered++;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Response<DeviceState> getState(WeaveApiClient apiClient, String deviceId) {
+            return mSimulator.getState(apiClient, deviceId);
+        }
+
+        @Override
+        public Response<ModelManifest> getModelManifest(WeaveApiClient apiClient,
+                String manifestId) {
+            return mSimulator.getModelManifest(apiClient, manifestId);
+        }
+
+        @Override
+        public Response<EventResultList> getEvents(WeaveApiClient apiClient, String deviceId) {
+            return mSimulator.getEvents(apiClient, deviceId);
+        }
+
+        @Override
+        public Response<Intent> getRequestAccessIntent(WeaveApiClient apiClient,
+                AppAccessRequest request) {
+            return mSimulator.getRequestAccessIntent(apiClient, request);
+        }
+
+        @Override
+        public void startLoading(WeaveApiClient apiClient, DeviceLoaderCallbacks callbacks) {
+            mSimulator.startLoading(apiClient, callbacks);
+        }
+
+        @Override
+        public void stopLoading(WeaveApiClient apiClient, DeviceLoaderCallbacks callbacks) {
+            mSimulator.stopLoading(apiClient, callbacks);
+        }
+
+        @Override
+        public String toString() {
+            return mSimulator.toString();
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler();
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    private Config mConfig;
+    private Listener mListener;
+    private int mRun;
+    private WeaveBackend mPreviousBackend;
+    private SimulatedWeaveBackend mSimulator;
+    private OrderCheckingBackend mBackend;
+    private LedCommandSender mSender;
+    private List<WeaveDevice> mDevices;
+    private HashMap<String, LedLoad[]> mLeds;
+    private Random mRandom;
+
+    private long mStartMs;
+    private long mLoadEndMs;
+    private boolean mLoadDone;
+    private long mSubmitted;
+    private long mSucceeded;
+    private long mFailed;
+    private long mRolledBack;
+    private LatencyHistogram mLatency;
+    private long mSamples;
+    private long mCoalescerDepthSum;
+    private int mCoalescerDepthMax;
+    private long mLaneDepthSum;
+    private int mLaneDepthMax;
+    private int mInFlightMax;
+
+    public ToggleLoadHarness(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    public boolean isRunning() {
+        return mConfig != null;
+    }
+
+    /**
+     * Starts a run. The listener is called once the load has been generated and every command
+     * has completed, or the drain timeout has expired. Does nothing if a run is in progress.
+     */
+    public void start(Config config, Listener listener) {
+        if (isRunning()) {
+            return;
+        }
+        mConfig = config;
+        mListener = listener;
+        mSimulator = new SimulatedWeaveBackend(config.simulator
+                .setDeviceCount(config.deviceCount)
+                .setLedCount(config.ledCount), WeaveGateway.newMainThreadExecutor());
+        mBackend = new OrderCheckingBackend(mSimulator);
+        mPreviousBackend = WeaveGateway.getInstance().getBackend();
+        WeaveGateway.getInstance().setBackend(mBackend);
+
+        mDevices = mSimulator.getDevices();
+        mLeds = new HashMap<>();
+        for (WeaveDevice device : mDevices) {
+            LedLoad[] leds = new LedLoad[config.ledCount];
+            for (int i = 0; i < leds.length; i++) {
+                leds[i] = new LedLoad();
+            }
+            mLeds.put(device.getId(), leds);
+        }
+        mRandom = new Random(config.simulator.seed);
+        final int run = ++mRun;
+        mSender = new LedCommandSender(LedTogglerApplication.from(mContext).getApiClient(),
+                new LedCommandSender.Listener() {
+                    @Override
+                    public void onCommandSent(WeaveDevice device, int ledIndex,
+                            boolean lightOn) {
+                        if (isRunning() && run == mRun) {
+                            mBackend.onCommandSent(device.getId(), ledIndex, lightOn);
+                        }
+                    }
+
+                    @Override
+                    public void onCommandSucceeded(WeaveDevice device, int ledIndex,
+                            boolean lightOn) {
+                        if (!isRunning() || run != mRun) {
+                            // Completed after its run was cancelled or timed out.
+                            return;
+                        }
+                        mBackend.onCommandFinished(device.getId(), ledIndex);
+                        mSucceeded++;
+                        LedLoad led = mLeds.get(device.getId())[ledIndex];
+                        if (led.desired == lightOn && led.unconfirmedSinceMs >= 0) {
+                            mLatency.record(SystemClock.elapsedRealtime()
+                                    - led.unconfirmedSinceMs);
+                            led.unconfirmedSinceMs = -1;
+                        }
+                    }
+
+                    @Override
+                    public void onCommandAccepted(WeaveDevice device, int ledIndex,
+                            boolean lightOn) {
+                        // The simulator applies every command right away.
+                        onCommandSucceeded(device, ledIndex, lightOn);
+                    }
+
+                    @Override
+                    public boolean onCommandFailed(WeaveDevice device, int ledIndex,
+                            boolean lightOn, Response<CommandResult> result) {
+                        if (!isRunning() || run != mRun) {
+                            return false;
+                        }
+                        mBackend.onCommandFinished(device.getId(), ledIndex);
+                        mFailed++;
+                        // Roll back like the LED switches screen does, if nothing newer was
+                        // requested.
+                        LedLoad led = mLeds.get(device.getId())[ledIndex];
+                        if (led.desired != lightOn) {
+                            return false;
+                        }
+                        mRolledBack++;
+                        led.desired = !lightOn;
+                        led.unconfirmedSinceMs = -1;
+                        return true;
+                    }
+                });
+
+        mSubmitted = 0;
+        mSucceeded = 0;
+        mFailed = 0;
+        mRolledBack = 0;
+        mLatency = new LatencyHistogram();
+        mSamples = 0;
+        mCoalescerDepthSum = 0;
+        mCoalescerDepthMax = 0;
+        mLaneDepthSum = 0;
+        mLaneDepthMax = 0;
+        mInFlightMax = 0;
+        mStartMs = SystemClock.elapsedRealtime();
+        mLoadEndMs = mStartMs + config.durationMs;
+        mLoadDone = false;
+        Log.i(TAG, "Starting load test: " + describeConfig());
+        if (config.burst) {
+            for (WeaveDevice device : mDevices) {
+                for (int i = 0; i < config.ledCount; i++) {
+                    toggle(device, i);
+                }
+            }
+        }
+        mHandler.post(mTick);
+    }
+
+    /**
+     * Stops a run in progress without reporting it, and restores the previous backend.
+     */
+    public void cancel() {
+        if (isRunning()) {
+            Log.i(TAG, "Load test cancelled");
+            finish();
+        }
+    }
+
+    private void tick() {
+        long nowMs = SystemClock.elapsedRealtime();
+        if (nowMs < mLoadEndMs) {
+            long due = mConfig.togglesPerSecond * (nowMs - mStartMs) / 1000 - mSubmitted;
+            for (long i = 0; i < due; i++) {
+                WeaveDevice device = mDevices.get(mRandom.nextInt(mDevices.size()));
+                toggle(device, mRandom.nextInt(mConfig.ledCount));
+            }
+        } else if (!mLoadDone) {
+            mLoadDone = true;
+            // Don't leave the last toggles waiting for the coalescing window.
+            mSender.flush();
+        }
+        sampleQueues();
+
+        boolean drained = mLoadDone && mSender.getCoalescer().getActiveCount() == 0;
+        if (drained || nowMs > mLoadEndMs + mConfig.drainTimeoutMs) {
+            String report = buildReport(nowMs, drained);
+            Log.i(TAG, report);
+            Listener listener = mListener;
+            finish();
+            listener.onLoadTestFinished(report);
+        } else {
+            mHandler.postDelayed(mTick, TICK_MS);
+        }
+    }
+
+    private void toggle(WeaveDevice device, int ledIndex) {
+        LedLoad led = mLeds.get(device.getId())[ledIndex];
+        led.desired = !led.desired;
+        if (led.unconfirmedSinceMs < 0) {
+            led.unconfirmedSinceMs = SystemClock.elapsedRealtime();
+        }
+        mSubmitted++;
+        mSender.submit(device, ledIndex, led.desired);
+    }
+
+    private void sampleQueues() {
+        int coalescerDepth = mSender.getCoalescer().getActiveCount();
+        int laneDepth = WeaveScheduler.getInstance().getQueueDepth(
+                WeaveScheduler.PRIORITY_COMMAND);
+        WeaveMetrics.Operation execute = WeaveMetrics.getInstance().get(WeaveGateway.OP_EXECUTE);
+        mSamples++;
+        mCoalescerDepthSum += coalescerDepth;
+        mCoalescerDepthMax = Math.max(mCoalescerDepthMax, coalescerDepth);
+        mLaneDepthSum += laneDepth;
+        mLaneDepthMax = Math.max(mLaneDepthMax, laneDepth);
+        mInFlightMax = Math.max(mInFlightMax, execute.getInFlight());
+    }
+
+    private void finish() {
+        mHandler.removeCallbacks(mTick);
+        WeaveGateway.getInstance().setBackend(mPreviousBackend);
+        mConfig = null;
+        mListener = null;
+        mSender = null;
+        mSimulator = null;
+        mBackend = null;
+        mLeds = null;
+        mDevices = null;
+    }
+
+    private String buildReport(long nowMs, boolean drained) {
+        // LEDs the simulated devices didn't end up at the last state requested for them.
+        int lost = 0;
+        for (WeaveDevice device : mDevices) {
+            LedStates actual = mSimulator.getLedStates(device.getId());
+            LedLoad[] leds = mLeds.get(device.getId());
+            for (int i = 0; i < leds.length; i++) {
+                if (actual.isOn(i) != leds[i].desired) {
+                    lost++;
+                }
+            }
+        }
+        LedCommandCoalescer coalescer = mSender.getCoalescer();
+        long loadMs = Math.max(1, Math.min(nowMs, mLoadEndMs) - mStartMs);
+        long totalMs = Math.max(1, nowMs - mStartMs);
+        long samples = Math.max(1, mSamples);
+        return "Load test: " + describeConfig()
+                + "\nSimulator: " + mSimulator
+                + "\nToggles: " + mSubmitted + " submitted, "
+                + (mConfig.burst ? "all at once" : (mSubmitted * 1000 / loadMs) + "/s achieved")
+                + "\nCommands: " + coalescer.getSentCount() + " sent ("
+                + coalescer.getCoalescedCount() + " toggles coalesced), " + mSucceeded
+                + " succeeded, " + mFailed + " failed, " + mRolledBack + " rolled back"
+                + "\nThroughput: " + ((mSucceeded + mFailed) * 1000 / totalMs)
+                + " commands/s over " + totalMs + "ms"
+                + "\nToggle to applied: p50 " + mLatency.getPercentileMs(0.5f)
+                + "ms, p90 " + mLatency.getPercentileMs(0.9f)
+                + "ms, p99 " + mLatency.getPercentileMs(0.99f)
+                + "ms, max " + mLatency.getMaxMs() + "ms"
+                + "\nCoalescer LEDs active: avg " + (mCoalescerDepthSum / samples)
+                + ", max " + mCoalescerDepthMax
+                + "\nCommand lane queue: avg " + (mLaneDepthSum / samples)
+                + ", max " + mLaneDepthMax + "; commands in flight max " + mInFlightMax
+                + "\nPipeline: " + CommandPipeline.getInstance().describe()
+                + "\nLost: " + lost + " LEDs not at their requested state"
+                + (drained ? "" : " (drain timed out)")
+                + "\nReordered: " + mBackend.getReordered()
+                + " commands executed ahead of one sent earlier to the same LED";
+    }
+
+    private String describeConfig() {
+        return mConfig.name + ", " + mConfig.deviceCount + " devices x " + mConfig.ledCount
+                + " LEDs" + (mConfig.burst ? ""
+                        : ", " + mConfig.togglesPerSecond + " toggles/s for "
+                                + mConfig.durationMs + "ms");
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.weave.apis.data.DiscoveryTransport;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+
+import java.util.HashMap;
+
+/**
+ * Measures the latency and health of commands and state reads per device and per transport.
+ *
+ * The Weave library picks the transport itself: a device reachable on the LAN is always talked
+ * to over Privet, and over the cloud otherwise. The app can't override that choice, so this
+ * class tracks which transport each call actually took ({@link #routeOf}), keeps a smoothed
+ * latency and a failure streak for it, and reports when that route is degraded so the UI can
+ * say so. Thread-safe.
+ */
+public class TransportMonitor {
+    private static final String TAG = TransportMonitor.class.getSimpleName();
+
+    public static final int TRANSPORT_NONE = -1;
+    public static final int TRANSPORT_LAN = 0;
+    public static final int TRANSPORT_CLOUD = 1;
+
+    private static final String[] TRANSPORT_NAMES = {"LAN", "Cloud"};
+
+    /** Weight of the newest sample in the smoothed latency. */
+    private static final float LATENCY_SMOOTHING = 0.25f;
+    /** Consecutive failures after which a route counts as degraded. */
+    private static final int DEGRADED_FAILURES = 3;
+    /** Smoothed latency above which a route counts as degraded, per transport. */
+    private static final long[] DEGRADED_LATENCY_MS = {1000, 5000};
+
+    private static TransportMonitor sInstance;
+
+    /** Health of one transport to one device. */
+    public static class RouteStats {
+        public final int transport;
+        long samples;
+        long failures;
+        int consecutiveFailures;
+        float smoothedLatencyMs;
+
+        RouteStats(int transport) {
+            this.transport = transport;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        /** Latency of recent successful calls, smoothed, or 0 if none succeeded yet. */
+        public long getLatencyMs() {
+            return Math.round(smoothedLatencyMs);
+        }
+
+        public boolean isDegraded() {
+            return consecutiveFailures >= DEGRADED_FAILURES
+                    || smoothedLatencyMs > DEGRADED_LATENCY_MS[transport];
+        }
+
+        RouteStats copy() {
+            RouteStats copy = new RouteStats(transport);
+            copy.samples = samples;
+            copy.failures = failures;
+            copy.consecutiveFailures = consecutiveFailures;
+            copy.smoothedLatencyMs = smoothedLatencyMs;
+            return copy;
+        }
+    }
+
+    // Keyed by device id + '/' + transport.
+    private final HashMap<String, RouteStats> mRoutes = new HashMap<>();
+
+    public static synchronized TransportMonitor getInstance() {
+        if (sInstance == null) {
+            sInstance = new TransportMonitor();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns whether the device can be reached over the cloud, even if calls go over the LAN.
+     */
+    public static boolean hasCloud(WeaveDevice device) {
+        DiscoveryTransport transport = device.getDiscoveryTransport();
+        return transport != null && transport.hasCloud();
+    }
+
+    /**
+     * Returns the transport the Weave library uses for commands and state reads of the device.
+     */
+    public static int routeOf(WeaveDevice device) {
+        DiscoveryTransport transport = device.getDiscoveryTransport();
+        if (transport == null) {
+            return TRANSPORT_NONE;
+        }
+        if (transport.hasLan()) {
+            return TRANSPORT_LAN;
+        }
+        if (transport.hasCloud()) {
+            return TRANSPORT_CLOUD;
+        }
+        return TRANSPORT_NONE;
+    }
+
+    public static String transportName(int transport) {
+        return transport == TRANSPORT_NONE ? "None" : TRANSPORT_NAMES[transport];
+    }
+
+    /**
+     * Records a finished call to the device.
+     * @param startMs {@link SystemClock#elapsedRealtime()} when the call was issued.
+     */
+    public void record(WeaveDevice device, long startMs, boolean success) {
+        int transport = routeOf(device);
+        if (transport == TRANSPORT_NONE) {
+            return;
+        }
+        long latencyMs = SystemClock.elapsedRealtime() - startMs;
+        String key = device.getId() + '/' + transport;
+        synchronized (mRoutes) {
+            RouteStats stats = mRoutes.get(key);
+            if (stats == null) {
+                stats = new RouteStats(transport);
+                mRoutes.put(key, stats);
+            }
+            boolean wasDegraded = stats.isDegraded();
+            stats.samples++;
+            if (success) {
+                stats.consecutiveFailures = 0;
+                stats.smoothedLatencyMs = stats.smoothedLatencyMs == 0 ? latencyMs
+                        : stats.smoothedLatencyMs
+                                + LATENCY_SMOOTHING * (latencyMs - stats.smoothedLatencyMs);
+            } else {
+                stats.failures++;
+                stats.consecutiveFailures++;
+            }
+            if (stats.isDegraded() != wasDegraded) {
+                Log.i(TAG, transportName(transport) + " route to " + device.getId()
+                        + (wasDegraded ? " recovered" : " degraded") + ", latency "
+                        + stats.getLatencyMs() + "ms");
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the stats of the route the library currently uses for the device,
+     * or null if no call has been made over it yet.
+     */
+    public RouteStats getCurrentRoute(WeaveDevice device) {
+        int transport = routeOf(device);
+        synchronized (mRoutes) {
+            RouteStats stats = mRoutes.get(device.getId() + '/' + transport);
+            return stats == null ? null : stats.copy();
+        }
+    }
+
+    /** Logs the stats of every route used so far. */
+    public void logStats() {
+        synchronized (mRoutes) {
+            for (HashMap.Entry<String, RouteStats> entry : mRoutes.entrySet()) {
+                RouteStats stats = entry.getValue();
+                Log.i(TAG, entry.getKey() + " (" + transportName(stats.transport) + "): "
+                        + stats.samples + " calls, " + stats.failures + " failed, latency "
+                        + stats.getLatencyMs() + "ms" + (stats.isDegraded() ? ", degraded" : ""));
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.content.Intent;
+
+import com.google.android.apps.weave.apis.appaccess.AppAccessRequest;
+import com.google.android.apps.weave.apis.data.Command;
+import com.google.android.apps.weave.apis.data.CommandResult;
+import com.google.android.apps.weave.apis.data.DeviceState;
+import com.google.android.apps.weave.apis.data.EventResultList;
+import com.google.android.apps.weave.apis.data.ModelManifest;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.responses.Response;
+import com.google.android.apps.weave.apis.device.DeviceLoaderCallbacks;
+import com.google.android.apps.weave.apis.events.EventApi;
+import com.google.android.apps.weave.framework.apis.Weave;
+import com.google.android.apps.weave.framework.events.EventApiImpl;
+import com.google.android.apps.weave.gcd.apis.events.GcdEventPlugin;
+
+/**
+ * The real Weave APIs.
+ */
+public class WeaveApiBackend implements WeaveBackend {
+
+    private static final EventApi EVENT_API = new EventApiImpl(new GcdEventPlugin());
+
+    @Override
+    public Response<CommandResult> execute(WeaveApiClient apiClient, String deviceId,
+            Command command) {
+        return Weave.COMMAND_API.execute(apiClient, deviceId, command);
+    }
+
+    @Override
+    public Response<DeviceState> getState(WeaveApiClient apiClient, String deviceId) {
+        return Weave.COMMAND_API.getState(apiClient, deviceId);
+    }
+
+    @Override
+    public Response<ModelManifest> getModelManifest(WeaveApiClient apiClient, String manifestId) {
+        return Weave.DEVICE_API.getModelManifest(apiClient, manifestId);
+    }
+
+    @Override
+    public Response<EventResultList> getEvents(WeaveApiClient apiClient, String deviceId) {
+        return EVENT_API.getEvents(apiClient, deviceId);
+    }
+
+    @Override
+    public Response<Intent> getRequestAccessIntent(WeaveApiClient apiClient,
+            AppAccessRequest request) {
+        return Weave.APP_ACCESS_API.getRequestAccessIntent(apiClient, request);
+    }
+
+    @Override
+    public void startLoading(WeaveApiClient apiClient, DeviceLoaderCallbacks callbacks) {
+        Weave.DEVICE_API.startLoading(apiClient, callbacks);
+    }
+
+    @Override
+    public void stopLoading(WeaveApiClient apiClient, DeviceLoaderCallbacks callbacks) {
+        Weave.DEVICE_API.stopLoading(apiClient, callbacks);
+    }
+
+    @Override
+    public String toString() {
+        return "Weave APIs";
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.content.Intent;
+
+import com.google.android.apps.weave.apis.appaccess.AppAccessRequest;
+import com.google.android.apps.weave.apis.data.Command;
+import com.google.android.apps.weave.apis.data.CommandResult;
+import com.google.android.apps.weave.apis.data.DeviceState;
+import com.google.android.apps.weave.apis.data.EventResultList;
+import com.google.android.apps.weave.apis.data.ModelManifest;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.responses.Response;
+import com.google.android.apps.weave.apis.device.DeviceLoaderCallbacks;
+
+/**
+ * The Weave calls the app makes, as served by {@link WeaveGateway}. Implemented by
+ * {@link WeaveApiBackend} for real devices and by {@link SimulatedWeaveBackend} for offline
+ * testing. Apart from discovery, calls block and are made off the main thread.
+ */
+public interface WeaveBackend {
+
+    Response<CommandResult> execute(WeaveApiClient apiClient, String deviceId, Command command);
+
+    Response<DeviceState> getState(WeaveApiClient apiClient, String deviceId);
+
+    Response<ModelManifest> getModelManifest(WeaveApiClient apiClient, String manifestId);
+
+    Response<EventResultList> getEvents(WeaveApiClient apiClient, String deviceId);
+
+    Response<Intent> getRequestAccessIntent(WeaveApiClient apiClient, AppAccessRequest request);
+
+    /**
+     * Starts reporting devices to {@code callbacks}, on the main thread, until
+     * {@link #stopLoading} is called with the same callbacks.
+     */
+    void startLoading(WeaveApiClient apiClient, DeviceLoaderCallbacks callbacks);
+
+    void stopLoading(WeaveApiClient apiClient, DeviceLoaderCallbacks callbacks);
+}
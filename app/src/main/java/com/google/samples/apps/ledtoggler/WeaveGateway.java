@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.google.android.apps.weave.apis.appaccess.AppAccessRequest;
+import com.google.android.apps.weave.apis.data.Command;
+import com.google.android.apps.weave.apis.data.CommandResult;
+import com.google.android.apps.weave.apis.data.DeviceState;
+import com.google.android.apps.weave.apis.data.EventResultList;
+import com.google.android.apps.weave.apis.data.ModelManifest;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+import com.google.android.apps.weave.apis.data.responses.ResultCode;
+import com.google.android.apps.weave.apis.data.responses.WeaveError;
+import com.google.android.apps.weave.apis.device.DeviceLoaderCallbacks;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * The single entry point for the Weave calls the app makes. Every call is timed and its outcome
+ * recorded in {@link WeaveMetrics}; commands and state reads are also recorded per transport in
+ * {@link TransportMonitor}. Calls block, so apart from discovery they must be made off the main
+ * thread, like the Weave APIs they wrap.
+ * <p>
+ * Calls to devices and model manifest fetches that fail with a transient error are retried a
+ * few times, with jittered exponential backoff. Calls to a device also go through its
+ * {@link CircuitBreaker} circuit, and fail right away while the device seems unreachable.
+ * <p>
+ * Calls are served by a {@link WeaveBackend}: the real Weave APIs, or a
+ * {@link SimulatedWeaveBackend} switched on from the debug screen.
+ */
+public class WeaveGateway {
+    public static final String OP_EXECUTE = "commands.execute";
+    public static final String OP_GET_STATE = "commands.getState";
+    public static final String OP_GET_MODEL_MANIFEST = "device.getModelManifest";
+    public static final String OP_GET_EVENTS = "events.getEvents";
+    public static final String OP_REQUEST_ACCESS = "appAccess.getRequestAccessIntent";
+    public static final String OP_START_DISCOVERY = "device.startLoading";
+    /** Time from starting discovery until the first device is found. */
+    public static final String OP_FIRST_DEVICE_FOUND = "device.firstDeviceFound";
+    /** Backoff before retrying a failed call. */
+    public static final String OP_RETRY_BACKOFF = "gateway.retryBackoff";
+    /** Calls refused because the device's circuit is open. */
+    public static final String OP_CIRCUIT_OPEN = "gateway.circuitOpen";
+
+    /** Attempts made at a call, including the first one. */
+    private static final int MAX_ATTEMPTS = 3;
+    /** Backoff before the first retry; doubled for each further one. */
+    private static final long BASE_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 2000;
+
+    private static WeaveGateway sInstance;
+
+    /** One attempt at a call, made against the given backend. */
+    private interface Call<T> {
+        Response<T> attempt(WeaveBackend backend);
+    }
+
+    /** A discovery started through the gateway, and the backend it was started on. */
+    private static class Discovery {
+        final WeaveBackend backend;
+        final DeviceLoaderCallbacks callbacks;
+
+        Discovery(WeaveBackend backend, DeviceLoaderCallbacks callbacks) {
+            this.backend = backend;
+            this.callbacks = callbacks;
+        }
+    }
+
+    private final WeaveMetrics mMetrics = WeaveMetrics.getInstance();
+    private final TransportMonitor mTransportMonitor = TransportMonitor.getInstance();
+    private final CircuitBreaker mCircuitBreaker = CircuitBreaker.getInstance();
+    private final Random mRandom = new Random();
+    private final WeaveBackend mWeaveApi = new WeaveApiBackend();
+    private volatile WeaveBackend mBackend = mWeaveApi;
+    // Discoveries in progress, by the app's callbacks they report to.
+    private final HashMap<DeviceLoaderCallbacks, Discovery> mDiscoveries = new HashMap<>();
+
+    public static synchronized WeaveGateway getInstance() {
+        if (sInstance == null) {
+            sInstance = new WeaveGateway();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Serves all further calls from a new {@link SimulatedWeaveBackend}, which reports its
+     * devices on the main thread.
+     */
+    public void useSimulator(SimulatedWeaveBackend.Config config) {
+        setBackend(new SimulatedWeaveBackend(config, newMainThreadExecutor()));
+    }
+
+    /** Serves all further calls from the real Weave APIs, undoing {@link #useSimulator}. */
+    public void useWeaveApi() {
+        setBackend(mWeaveApi);
+    }
+
+    /**
+     * Serves all further calls from the given backend. Discoveries already in progress stay on
+     * the backend they were started on until stopped.
+     */
+    public void setBackend(WeaveBackend backend) {
+        mBackend = backend;
+    }
+
+    public WeaveBackend getBackend() {
+        return mBackend;
+    }
+
+    public boolean isSimulated() {
+        return mBackend instanceof SimulatedWeaveBackend;
+    }
+
+    public Response<CommandResult> execute(final WeaveApiClient apiClient,
+            final WeaveDevice device, final Command command) {
+        // Commands only ever set an LED to a given state, so they are safe to repeat.
+        return call(OP_EXECUTE, device, device.getId(), new Call<CommandResult>() {
+            @Override
+            public Response<CommandResult> attempt(WeaveBackend backend) {
+                return backend.execute(apiClient, device.getId(), command);
+            }
+        });
+    }
+
+    public Response<DeviceState> getState(final WeaveApiClient apiClient,
+            final WeaveDevice device) {
+        return call(OP_GET_STATE, device, device.getId(), new Call<DeviceState>() {
+            @Override
+            public Response<DeviceState> attempt(WeaveBackend backend) {
+                return backend.getState(apiClient, device.getId());
+            }
+        });
+    }
+
+    public Response<ModelManifest> getModelManifest(final WeaveApiClient apiClient,
+            final String manifestId) {
+        return call(OP_GET_MODEL_MANIFEST, null, null, new Call<ModelManifest>() {
+            @Override
+            public Response<ModelManifest> attempt(WeaveBackend backend) {
+                return backend.getModelManifest(apiClient, manifestId);
+            }
+        });
+    }
+
+    /** Returns the cloud events of a device. */
+    public Response<EventResultList> getEvents(final WeaveApiClient apiClient,
+            final String deviceId) {
+        return call(OP_GET_EVENTS, null, deviceId, new Call<EventResultList>() {
+            @Override
+            public Response<EventResultList> attempt(WeaveBackend backend) {
+                return backend.getEvents(apiClient, deviceId);
+            }
+        });
+    }
+
+    public Response<Intent> getRequestAccessIntent(WeaveApiClient apiClient,
+            AppAccessRequest request) {
+        long startMs = begin(OP_REQUEST_ACCESS);
+        Response<Intent> result = null;
+        try {
+            result = mBackend.getRequestAccessIntent(apiClient, request);
+            return result;
+        } finally {
+            end(OP_REQUEST_ACCESS, startMs, result);
+        }
+    }
+
+    /**
+     * Starts device discovery, timing how long it takes to find the first device. Must be called
+     * from the main thread, and matched by {@link #stopDiscovery} with the same callbacks.
+     */
+    public void startDiscovery(WeaveApiClient apiClient, final DeviceLoaderCallbacks callbacks) {
+        if (mDiscoveries.containsKey(callbacks)) {
+            return;
+        }
+        final long startMs = SystemClock.elapsedRealtime();
+        DeviceLoaderCallbacks timed = new DeviceLoaderCallbacks() {
+            private boolean mFoundFirst;
+
+            @Override
+            public void onDevicesFound(WeaveDevice[] weaveDevices) {
+                if (!mFoundFirst && weaveDevices.length > 0) {
+                    mFoundFirst = true;
+                    mMetrics.recordDuration(OP_FIRST_DEVICE_FOUND,
+                            SystemClock.elapsedRealtime() - startMs);
+                }
+                callbacks.onDevicesFound(weaveDevices);
+            }
+
+            @Override
+            public void onDevicesLost(WeaveDevice[] weaveDevices) {
+                callbacks.onDevicesLost(weaveDevices);
+            }
+        };
+        WeaveBackend backend = mBackend;
+        mDiscoveries.put(callbacks, new Discovery(backend, timed));
+        mMetrics.begin(OP_START_DISCOVERY);
+        try {
+            backend.startLoading(apiClient, timed);
+        } finally {
+            mMetrics.end(OP_START_DISCOVERY, SystemClock.elapsedRealtime() - startMs, 0);
+        }
+    }
+
+    public void stopDiscovery(WeaveApiClient apiClient, DeviceLoaderCallbacks callbacks) {
+        Discovery discovery = mDiscoveries.remove(callbacks);
+        if (discovery != null) {
+            discovery.backend.stopLoading(apiClient, discovery.callbacks);
+        }
+    }
+
+    /** Returns an executor that runs everything on the main thread. */
+    public static Executor newMainThreadExecutor() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * Makes a call, retrying it while it fails with a transient error.
+     * @param device The called device, whose transport is recorded, or null.
+     * @param deviceId Id of the called device, whose circuit the call goes through, or null.
+     */
+    private <T> Response<T> call(String operation, WeaveDevice device, String deviceId,
+            Call<T> call) {
+        for (int attempt = 1; ; attempt++) {
+            if (deviceId != null && !mCircuitBreaker.allow(deviceId)) {
+                mMetrics.recordDuration(OP_CIRCUIT_OPEN, 0);
+                WeaveError error = WeaveError.fromCode(ResultCode.DEVICE_MISSING);
+                error.setMessage("Device " + deviceId + " is unreachable");
+                return Response.createError(error);
+            }
+            long startMs = begin(operation);
+            Response<T> result = null;
+            try {
+                result = call.attempt(mBackend);
+            } finally {
+                end(operation, startMs, result);
+                if (device != null) {
+                    mTransportMonitor.record(device, startMs, result != null && result.isSuccess());
+                }
+                if (deviceId != null) {
+                    if (isUnreachable(result)) {
+                        mCircuitBreaker.recordFailure(deviceId);
+                    } else {
+                        mCircuitBreaker.recordSuccess(deviceId);
+                    }
+                }
+            }
+            if (attempt >= MAX_ATTEMPTS || !isRetryable(result)) {
+                return result;
+            }
+            // Half the backoff is fixed and half random, so clients failing together don't
+            // retry together.
+            long backoffMs = Math.min(BASE_BACKOFF_MS << (attempt - 1), MAX_BACKOFF_MS);
+            backoffMs = backoffMs / 2 + (long) (mRandom.nextDouble() * (backoffMs / 2));
+            mMetrics.recordDuration(OP_RETRY_BACKOFF, backoffMs);
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result;
+            }
+        }
+    }
+
+    /** Returns the error code of a failed call, or 0 if it succeeded. */
+    private static int errorCodeOf(Response<?> result) {
+        if (result == null) {
+            return WeaveMetrics.UNKNOWN_ERROR;
+        } else if (!result.isSuccess() || result.getError() != null) {
+            return result.getError() == null
+                    ? WeaveMetrics.UNKNOWN_ERROR : result.getError().getErrorCode();
+        }
+        return 0;
+    }
+
+    /** Whether a failed call may succeed if simply made again. */
+    private static boolean isRetryable(Response<?> result) {
+        switch (errorCodeOf(result)) {
+            case ResultCode.EXCEPTION:
+            case ResultCode.ERROR:
+            case WeaveMetrics.UNKNOWN_ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether a call failed in a way that suggests the device can't be reached. Errors that are
+     * about the app, such as missing access, say nothing about the device.
+     */
+    private static boolean isUnreachable(Response<?> result) {
+        return isRetryable(result) || errorCodeOf(result) == ResultCode.DEVICE_MISSING;
+    }
+
+    private long begin(String operation) {
+        mMetrics.begin(operation);
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void end(String operation, long startMs, Response<?> result) {
+        mMetrics.end(operation, SystemClock.elapsedRealtime() - startMs, errorCodeOf(result));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import com.google.android.apps.weave.apis.data.responses.ResultCode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide latency, error and concurrency metrics of every Weave operation the app
+ * performs, recorded by {@link WeaveGateway}. Thread-safe.
+ *
+ * Has no Android dependencies.
+ */
+public final class WeaveMetrics {
+    /** Error code recorded for a failed call that carried no {@code WeaveError}. */
+    public static final int UNKNOWN_ERROR = -1;
+
+    private static WeaveMetrics sInstance;
+
+    /** Metrics of a single kind of operation. */
+    public static final class Operation {
+        public final String name;
+        public final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong mFailures = new AtomicLong();
+        private final AtomicInteger mInFlight = new AtomicInteger();
+        private final AtomicInteger mMaxInFlight = new AtomicInteger();
+        // Failures by ResultCode. Guarded by itself.
+        private final Map<Integer, Long> mErrorCodes = new LinkedHashMap<>();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        public long getCalls() {
+            return latency.getCount();
+        }
+
+        public long getFailures() {
+            return mFailures.get();
+        }
+
+        public int getInFlight() {
+            return mInFlight.get();
+        }
+
+        public int getMaxInFlight() {
+            return mMaxInFlight.get();
+        }
+
+        /** Returns a copy of the failure counts by ResultCode. */
+        public Map<Integer, Long> getErrorCodes() {
+            synchronized (mErrorCodes) {
+                return new LinkedHashMap<>(mErrorCodes);
+            }
+        }
+    }
+
+    // Guarded by itself.
+    private final Map<String, Operation> mOperations = new LinkedHashMap<>();
+
+    public static synchronized WeaveMetrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new WeaveMetrics();
+        }
+        return sInstance;
+    }
+
+    /** Returns the metrics of the named operation, creating them on first use. */
+    public Operation get(String name) {
+        synchronized (mOperations) {
+            Operation operation = mOperations.get(name);
+            if (operation == null) {
+                operation = new Operation(name);
+                mOperations.put(name, operation);
+            }
+            return operation;
+        }
+    }
+
+    /** Returns every operation recorded so far, sorted by name. */
+    public List<Operation> getOperations() {
+        List<Operation> operations;
+        synchronized (mOperations) {
+            operations = new ArrayList<>(mOperations.values());
+        }
+        Collections.sort(operations, new Comparator<Operation>() {
+            @Override
+            public int compare(Operation a, Operation b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return operations;
+    }
+
+    /** Marks the start of a call. Every call must be matched by {@link #end}. */
+    public void begin(String name) {
+        Operation operation = get(name);
+        int inFlight = operation.mInFlight.incrementAndGet();
+        int max = operation.mMaxInFlight.get();
+        while (inFlight > max && !operation.mMaxInFlight.compareAndSet(max, inFlight)) {
+            max = operation.mMaxInFlight.get();
+        }
+    }
+
+    /**
+     * Marks the end of a call.
+     * @param errorCode The call's {@link ResultCode}, {@link #UNKNOWN_ERROR}, or 0 on success.
+     */
+    public void end(String name, long latencyMs, int errorCode) {
+        Operation operation = get(name);
+        operation.mInFlight.decrementAndGet();
+        operation.latency.record(latencyMs);
+        if (errorCode != 0) {
+            operation.mFailures.incrementAndGet();
+            synchronized (operation.mErrorCodes) {
+                Long count = operation.mErrorCodes.get(errorCode);
+                operation.mErrorCodes.put(errorCode, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    /** Records a one-off duration, such as the time until discovery finds a first device. */
+    public void recordDuration(String name, long latencyMs) {
+        get(name).latency.record(latencyMs);
+    }
+
+    public static String resultCodeName(int code) {
+        switch (code) {
+            case ResultCode.EXCEPTION:
+                return "EXCEPTION";
+            case ResultCode.ERROR:
+                return "ERROR";
+            case ResultCode.DEVICE_MISSING:
+                return "DEVICE_MISSING";
+            case ResultCode.ACTION_UNAVAILABLE:
+                return "ACTION_UNAVAILABLE";
+            case ResultCode.RESOLUTION_REQUIRED:
+                return "RESOLUTION_REQUIRED";
+            case UNKNOWN_ERROR:
+                return "UNKNOWN";
+            default:
+                return String.valueOf(code);
+        }
+    }
+
+    /**
+     * Returns a plain-text report of every operation, one block per operation.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Operation operation : getOperations()) {
+            LatencyHistogram latency = operation.latency;
+            builder.append(operation.name).append('\n')
+                    .append("  calls ").append(operation.getCalls())
+                    .append(", failed ").append(operation.getFailures())
+                    .append(", in flight ").append(operation.getInFlight())
+                    .append(" (max ").append(operation.getMaxInFlight()).append(")\n")
+                    .append("  latency ms: p50 ").append(latency.getPercentileMs(0.5))
+                    .append(", p95 ").append(latency.getPercentileMs(0.95))
+                    .append(", p99 ").append(latency.getPercentileMs(0.99))
+                    .append(", mean ").append(latency.getMeanMs())
+                    .append(", max ").append(latency.getMaxMs()).append('\n');
+            Map<Integer, Long> errorCodes = operation.getErrorCodes();
+            if (!errorCodes.isEmpty()) {
+                builder.append("  errors:");
+                for (Map.Entry<Integer, Long> entry : errorCodes.entrySet()) {
+                    builder.append(' ').append(resultCodeName(entry.getKey()))
+                            .append('=').append(entry.getValue());
+                }
+                builder.append('\n');
+            }
+        }
+        return builder.toString();
+    }
+}
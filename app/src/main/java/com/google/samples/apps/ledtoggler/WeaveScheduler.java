@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the app's Weave work on bounded thread pools, one per priority lane. User-initiated
+ * commands never wait behind reads or manifest fetches, and slow background work (downloads,
+ * manifest fetches, prefetching, snapshot writes) can't take every thread from the state reads
+ * shown on screen. Within a lane, work runs in submission order.
+ *
+ * Use {@link #executor(int)} with {@link android.os.AsyncTask#executeOnExecutor} instead of
+ * {@link android.os.AsyncTask#THREAD_POOL_EXECUTOR}.
+ */
+public class WeaveScheduler {
+    private static final String TAG = WeaveScheduler.class.getSimpleName();
+
+    /** Commands the user is waiting on, such as toggling an LED. */
+    public static final int PRIORITY_COMMAND = 0;
+    /** Reads of device state shown on screen. */
+    public static final int PRIORITY_STATE = 1;
+    /** Work nobody is waiting on yet, such as manifest fetches and prefetching. */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final String[] LANE_NAMES = {"command", "state", "background"};
+
+    // Commands are already limited, and kept in order, by the CommandPipeline; enough threads
+    // for every command it lets through.
+    private static final int COMMAND_THREADS = CommandPipeline.DEFAULT_WINDOW;
+    private static final int STATE_THREADS = 3;
+    private static final int BACKGROUND_THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static WeaveScheduler sInstance;
+
+    /** Per-lane queue depth and wait-time counters. */
+    private static class LaneStats {
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong totalWaitMs = new AtomicLong();
+        final AtomicLong maxWaitMs = new AtomicLong();
+    }
+
+    /** Wraps a submitted runnable with the information needed to order and measure it. */
+    private class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        final Runnable runnable;
+        final int priority;
+        final long sequence;
+        final long enqueuedAtMs;
+
+        PrioritizedTask(Runnable runnable, int priority) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.sequence = mSequence.getAndIncrement();
+            this.enqueuedAtMs = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void run() {
+            LaneStats stats = mLaneStats[priority];
+            long waitMs = SystemClock.elapsedRealtime() - enqueuedAtMs;
+            stats.queued.decrementAndGet();
+            stats.running.incrementAndGet();
+            stats.started.incrementAndGet();
+            stats.totalWaitMs.addAndGet(waitMs);
+            long maxWaitMs = stats.maxWaitMs.get();
+            while (waitMs > maxWaitMs && !stats.maxWaitMs.compareAndSet(maxWaitMs, waitMs)) {
+                maxWaitMs = stats.maxWaitMs.get();
+            }
+            try {
+                runnable.run();
+            } finally {
+                stats.running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final ThreadPoolExecutor[] mPools = new ThreadPoolExecutor[LANE_NAMES.length];
+    private final Executor[] mLaneExecutors = new Executor[LANE_NAMES.length];
+    private final LaneStats[] mLaneStats = new LaneStats[LANE_NAMES.length];
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * Returns the process-wide scheduler.
+     */
+    public static synchronized WeaveScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new WeaveScheduler(COMMAND_THREADS, STATE_THREADS, BACKGROUND_THREADS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param commandThreads Maximum number of commands executing concurrently.
+     * @param stateThreads Maximum number of state reads executing concurrently.
+     * @param backgroundThreads Maximum number of background tasks executing concurrently.
+     */
+    public WeaveScheduler(int commandThreads, int stateThreads, int backgroundThreads) {
+        mPools[PRIORITY_COMMAND] = newPool("weave-command", commandThreads);
+        mPools[PRIORITY_STATE] = newPool("weave-state", stateThreads);
+        mPools[PRIORITY_BACKGROUND] = newPool("weave-background", backgroundThreads);
+        for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+            mLaneStats[lane] = new LaneStats();
+            final int priority = lane;
+            mLaneExecutors[lane] = new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    WeaveScheduler.this.execute(priority, runnable);
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns an executor that runs everything submitted to it in the given priority lane.
+     * @param priority One of {@link #PRIORITY_COMMAND}, {@link #PRIORITY_STATE} or
+     *                 {@link #PRIORITY_BACKGROUND}.
+     */
+    public Executor executor(int priority) {
+        return mLaneExecutors[priority];
+    }
+
+    /**
+     * Runs the given work in the given priority lane.
+     */
+    public void execute(int priority, Runnable runnable) {
+        mLaneStats[priority].queued.incrementAndGet();
+        mPools[priority].execute(new PrioritizedTask(runnable, priority));
+    }
+
+    /** Returns how many tasks of the given lane are waiting for a thread. */
+    public int getQueueDepth(int priority) {
+        return mLaneStats[priority].queued.get();
+    }
+
+    /** Returns the average time tasks of the given lane waited for a thread, in milliseconds. */
+    public long getAverageWaitMs(int priority) {
+        LaneStats stats = mLaneStats[priority];
+        long started = stats.started.get();
+        return started == 0 ? 0 : stats.totalWaitMs.get() / started;
+    }
+
+    /** Returns the longest time a task of the given lane waited for a thread, in milliseconds. */
+    public long getMaxWaitMs(int priority) {
+        return mLaneStats[priority].maxWaitMs.get();
+    }
+
+    /** Logs queue depth and wait times of every lane. */
+    public void logStats() {
+        for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+            Log.i(TAG, "Lane " + describeLane(lane));
+        }
+    }
+
+    /** Returns the number of priority lanes, which are numbered from 0. */
+    public int getLaneCount() {
+        return LANE_NAMES.length;
+    }
+
+    /** Returns a one-line summary of a lane's queue depth and wait times. */
+    public String describeLane(int lane) {
+        LaneStats stats = mLaneStats[lane];
+        return LANE_NAMES[lane] + ": queued " + stats.queued + ", running " + stats.running
+                + ", started " + stats.started + ", avg wait " + getAverageWaitMs(lane)
+                + "ms, max wait " + stats.maxWaitMs + "ms";
+    }
+
+    private static ThreadPoolExecutor newPool(final String name, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, name + "-" + mCount.incrementAndGet());
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
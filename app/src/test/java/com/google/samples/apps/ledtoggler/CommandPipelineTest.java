@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.apps.weave.apis.data.Command;
+import com.google.android.apps.weave.apis.data.CommandResult;
+import com.google.android.apps.weave.apis.data.WeaveApiClient;
+import com.google.android.apps.weave.apis.data.WeaveDevice;
+import com.google.android.apps.weave.apis.data.responses.Response;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that the {@link CommandPipeline} keeps commands to the same LED in issue order while
+ * running commands to different LEDs concurrently. Commands run against a recording runner on
+ * a thread pool of the test's own, so no process-wide gateway or scheduler is involved.
+ */
+public class CommandPipelineTest {
+    private static final int LED_COUNT = 4;
+    private static final int COMMANDS_PER_LED = 25;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /** Runs set commands after a random delay, recording the order each LED saw them in. */
+    private static class RecordingRunner implements CommandPipeline.Runner {
+        final List<List<Boolean>> executed = new ArrayList<>();
+        final AtomicInteger[] running = new AtomicInteger[LED_COUNT];
+        final AtomicInteger maxRunningPerLed = new AtomicInteger();
+        final AtomicInteger runningTotal = new AtomicInteger();
+        final AtomicInteger maxRunningTotal = new AtomicInteger();
+        private final Random mRandom = new Random(1);
+
+        RecordingRunner() {
+            for (int i = 0; i < LED_COUNT; i++) {
+                executed.add(Collections.synchronizedList(new ArrayList<Boolean>()));
+                running[i] = new AtomicInteger();
+            }
+        }
+
+        @Override
+        public Response<CommandResult> run(WeaveApiClient apiClient, WeaveDevice device,
+                Command command) {
+            int led = ((Number) command.getParameters().get(LedFlasher.PARAM_LED)).intValue() - 1;
+            boolean lightOn = (Boolean) command.getParameters().get(LedFlasher.PARAM_ON);
+            updateMax(maxRunningPerLed, running[led].incrementAndGet());
+            updateMax(maxRunningTotal, runningTotal.incrementAndGet());
+            try {
+                long delayMs;
+                synchronized (mRandom) {
+                    delayMs = 1 + mRandom.nextInt(5);
+                }
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executed.get(led).add(lightOn);
+            runningTotal.decrementAndGet();
+            running[led].decrementAndGet();
+            return Response.createSuccess(new CommandResult().setCommandState("done"));
+        }
+
+        private static void updateMax(AtomicInteger max, int value) {
+            int current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+    }
+
+    private RecordingRunner mRunner;
+    private ExecutorService mExecutor;
+    private CommandPipeline mPipeline;
+    private WeaveDevice mDevice;
+
+    @Before
+    public void setUp() {
+        mRunner = new RecordingRunner();
+        mExecutor = Executors.newFixedThreadPool(CommandPipeline.DEFAULT_WINDOW);
+        mPipeline = new CommandPipeline(CommandPipeline.DEFAULT_WINDOW,
+                CommandPipeline.DEFAULT_DEVICE_WINDOW, mRunner, mExecutor);
+        mDevice = new WeaveDevice();
+        mDevice.setId("pipeline-test-device");
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void commandsToOneLedRunInIssueOrder() throws InterruptedException {
+        final List<List<Boolean>> issued = new ArrayList<>();
+        final List<List<Boolean>> finished = new ArrayList<>();
+        for (int led = 0; led < LED_COUNT; led++) {
+            issued.add(new ArrayList<Boolean>());
+            finished.add(Collections.synchronizedList(new ArrayList<Boolean>()));
+        }
+        final CountDownLatch done = new CountDownLatch(LED_COUNT * COMMANDS_PER_LED);
+        Random random = new Random(2);
+        // Interleave the LEDs, so commands to different LEDs are in flight together.
+        for (int i = 0; i < COMMANDS_PER_LED; i++) {
+            for (int led = 0; led < LED_COUNT; led++) {
+                final int index = led;
+                final boolean lightOn = random.nextBoolean();
+                issued.get(led).add(lightOn);
+                mPipeline.submit(null, mDevice, LedFlasher.newSetCommand(led, lightOn),
+                        new CommandPipeline.Callback() {
+                            @Override
+                            public void onCommandFinished(Response<CommandResult> result) {
+                                finished.get(index).add(lightOn);
+                                done.countDown();
+                            }
+                        });
+            }
+        }
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        for (int led = 0; led < LED_COUNT; led++) {
+            assertEquals("LED " + led, issued.get(led), mRunner.executed.get(led));
+            assertEquals("LED " + led, issued.get(led), finished.get(led));
+        }
+        assertEquals(1, mRunner.maxRunningPerLed.get());
+        assertTrue(mRunner.maxRunningTotal.get() > 1);
+        assertTrue(mRunner.maxRunningTotal.get() <= CommandPipeline.DEFAULT_DEVICE_WINDOW);
+    }
+
+    @Test
+    public void executeWaitsForEarlierCommandsToTheSameLed() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(COMMANDS_PER_LED);
+        List<Boolean> issued = new ArrayList<>();
+        for (int i = 0; i < COMMANDS_PER_LED - 1; i++) {
+            boolean lightOn = i % 2 == 0;
+            issued.add(lightOn);
+            mPipeline.submit(null, mDevice, LedFlasher.newSetCommand(0, lightOn),
+                    new CommandPipeline.Callback() {
+                        @Override
+                        public void onCommandFinished(Response<CommandResult> result) {
+                            done.countDown();
+                        }
+                    });
+        }
+        issued.add(true);
+        Response<CommandResult> result =
+                mPipeline.execute(null, mDevice, LedFlasher.newSetCommand(0, true));
+        done.countDown();
+
+        assertTrue(result.isSuccess());
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(issued, mRunner.executed.get(0));
+        assertEquals(1, mRunner.maxRunningPerLed.get());
+    }
+
+    @Test
+    public void throwingCallbackDoesNotBlockTheLed() throws InterruptedException {
+        mPipeline.submit(null, mDevice, LedFlasher.newSetCommand(0, true),
+                new CommandPipeline.Callback() {
+                    @Override
+                    public void onCommandFinished(Response<CommandResult> result) {
+                        throw new IllegalStateException("Callback failed");
+                    }
+                });
+        final CountDownLatch done = new CountDownLatch(1);
+        mPipeline.submit(null, mDevice, LedFlasher.newSetCommand(0, false),
+                new CommandPipeline.Callback() {
+                    @Override
+                    public void onCommandFinished(Response<CommandResult> result) {
+                        done.countDown();
+                    }
+                });
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Boolean.FALSE, mRunner.executed.get(0).get(1));
+    }
+}
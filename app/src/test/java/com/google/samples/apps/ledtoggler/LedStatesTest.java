@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks {@link LedStates} at the sizes around its 64-bit word boundary.
+ */
+public class LedStatesTest {
+    private static final int[] SIZES = {0, 63, 64, 65};
+
+    @Test
+    public void newStatesAreOff() {
+        for (int size : SIZES) {
+            LedStates states = new LedStates(size);
+            assertEquals(size, states.size());
+            assertEquals(-1, states.nextOn(0));
+            for (int i = 0; i < size; i++) {
+                assertFalse(states.isOn(i));
+            }
+        }
+    }
+
+    @Test
+    public void setAllCoversEveryLedAndNoMore() {
+        for (int size : SIZES) {
+            LedStates states = new LedStates(size);
+            states.setAll(true);
+            for (int i = 0; i < size; i++) {
+                assertTrue("size " + size + ", LED " + i, states.isOn(i));
+            }
+            assertEquals(size, states.countDifferences(new LedStates(size)));
+            // The LED added by growing must not pick up bits set beyond the old size.
+            states.resize(size + 1);
+            assertFalse(states.isOn(size));
+            assertEquals(size, states.countDifferences(new LedStates(size + 1)));
+        }
+    }
+
+    @Test
+    public void lastLedIsFoundAsDifference() {
+        for (int size : SIZES) {
+            if (size == 0) {
+                continue;
+            }
+            LedStates states = new LedStates(size);
+            LedStates off = new LedStates(size);
+            states.set(size - 1, true);
+            assertEquals(size - 1, states.nextOn(0));
+            assertEquals(size - 1, states.nextDifference(off, 0));
+            assertEquals(size - 1, states.nextDifference(off, size - 1));
+            assertEquals(-1, states.nextDifference(off, size));
+            assertEquals(1, states.countDifferences(off));
+            assertFalse(states.equals(off));
+        }
+    }
+
+    @Test
+    public void differentSizesDifferAtTheExtraLeds() {
+        for (int size : SIZES) {
+            LedStates shorter = new LedStates(size);
+            LedStates longer = new LedStates(size + 1);
+            assertEquals(size, shorter.nextDifference(longer, 0));
+            assertEquals(size, longer.nextDifference(shorter, 0));
+            assertEquals(1, shorter.countDifferences(longer));
+            assertFalse(shorter.equals(longer));
+        }
+    }
+
+    @Test
+    public void shrinkingClearsRemovedLeds() {
+        for (int size : SIZES) {
+            LedStates states = new LedStates(size);
+            states.setAll(true);
+            states.resize(0);
+            states.resize(size);
+            assertEquals(-1, states.nextOn(0));
+            assertEquals(new LedStates(size), states);
+        }
+    }
+
+    @Test
+    public void copyFromMatchesSizeAndStates() {
+        for (int size : SIZES) {
+            LedStates source = new LedStates(size);
+            for (int i = 0; i < size; i += 2) {
+                source.set(i, true);
+            }
+            // Start from a larger copy with every LED on, so stale bits would show.
+            LedStates copy = new LedStates(130);
+            copy.setAll(true);
+            copy.copyFrom(source);
+            assertEquals(size, copy.size());
+            assertEquals(-1, copy.nextDifference(source, 0));
+            assertEquals(source, copy);
+            assertEquals(source.hashCode(), copy.hashCode());
+        }
+    }
+
+    @Test
+    public void setFromReadsEveryValue() {
+        for (int size : SIZES) {
+            List<Object> values = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                values.add(i % 3 == 0);
+            }
+            LedStates states = new LedStates(130);
+            states.setAll(true);
+            states.setFrom(values);
+            assertEquals(size, states.size());
+            for (int i = 0; i < size; i++) {
+                assertEquals(i % 3 == 0, states.isOn(i));
+            }
+        }
+    }
+
+    @Test
+    public void indexesOutsideTheSizeAreRejected() {
+        for (int size : SIZES) {
+            LedStates states = new LedStates(size);
+            try {
+                states.isOn(size);
+                fail("LED " + size + " of " + size + " was accepted");
+            } catch (IndexOutOfBoundsException expected) {
+            }
+        }
+    }
+}
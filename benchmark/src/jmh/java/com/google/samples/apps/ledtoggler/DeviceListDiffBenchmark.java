@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The data-set update behind {@code DeviceListAdapter}: sorting the new device list and diffing
+ * it against the shown one, as its background update task does. Devices are modelled by a
+ * plain item with the fields the adapter compares, ordered the same way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeviceListDiffBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int deviceCount;
+
+    static final class Item {
+        final String name;
+        final String id;
+        final String description;
+
+        Item(String name, String id, String description) {
+            this.name = name;
+            this.id = id;
+            this.description = description;
+        }
+    }
+
+    private static final SortedListDiff.Callback<Item> CALLBACK =
+            new SortedListDiff.Callback<Item>() {
+                @Override
+                public int compare(Item a, Item b) {
+                    int order = a.name.compareToIgnoreCase(b.name);
+                    return order != 0 ? order : a.id.compareTo(b.id);
+                }
+
+                @Override
+                public boolean areContentsTheSame(Item oldItem, Item newItem) {
+                    return oldItem.description.equals(newItem.description);
+                }
+            };
+
+    private List<Item> mOldList;
+    // Unsorted, like the adapter's pending updates merged into the shown devices.
+    private List<Item> mNewItems;
+    private List<Item> mSortedNewList;
+
+    @Setup
+    public void setUp() {
+        mOldList = new ArrayList<>(deviceCount);
+        mNewItems = new ArrayList<>(deviceCount);
+        for (int i = 0; i < deviceCount; i++) {
+            Item item = new Item("Board " + i, "id-" + i, "Rack " + (i / 20));
+            mOldList.add(item);
+            // 1% of the devices are lost, 1% changed.
+            if (i % 100 == 1) {
+                continue;
+            }
+            mNewItems.add(i % 100 == 2
+                    ? new Item(item.name, item.id, item.description + " (moved)") : item);
+        }
+        // 1% new devices.
+        for (int i = 0; i < Math.max(1, deviceCount / 100); i++) {
+            mNewItems.add(new Item("New board " + i, "new-" + i, "Rack 0"));
+        }
+        Collections.shuffle(mNewItems, new Random(42));
+        Collections.sort(mOldList, CALLBACK);
+        mSortedNewList = new ArrayList<>(mNewItems);
+        Collections.sort(mSortedNewList, CALLBACK);
+    }
+
+    /** Diffing two already sorted lists. */
+    @Benchmark
+    public SortedListDiff.Result diff() {
+        return SortedListDiff.diff(mOldList, mSortedNewList, CALLBACK);
+    }
+
+    /** The adapter's full update: copy, sort and diff. */
+    @Benchmark
+    public SortedListDiff.Result sortAndDiff() {
+        List<Item> newList = new ArrayList<>(mNewItems);
+        Collections.sort(newList, CALLBACK);
+        return SortedListDiff.diff(mOldList, newList, CALLBACK);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import com.google.android.apps.weave.apis.data.Command;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building {@code _ledflasher} commands and decoding {@code _ledflasher} state, for boards of
+ * 10 to 10,000 LEDs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LedFlasherBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int ledCount;
+
+    private Map<String, Object> mStateValue;
+    private final LedStates mDecoded = new LedStates();
+    private LedStates mCurrent;
+    private LedStates mDesired;
+    private final List<Command> mCommands = new ArrayList<>();
+    private int mNextLed;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        List<Boolean> leds = new ArrayList<>(ledCount);
+        mCurrent = new LedStates(ledCount);
+        for (int i = 0; i < ledCount; i++) {
+            boolean on = random.nextBoolean();
+            leds.add(on);
+            mCurrent.set(i, on);
+        }
+        mStateValue = new HashMap<>();
+        mStateValue.put(LedFlasher.STATE_LEDS, leds);
+
+        // One LED in ten needs a command.
+        mDesired = new LedStates(mCurrent);
+        for (int i = 0; i < ledCount; i += 10) {
+            mDesired.toggle(i);
+        }
+    }
+
+    /** A single set command, as sent for every toggle. */
+    @Benchmark
+    public Command newSetCommand() {
+        int led = mNextLed;
+        mNextLed = led + 1 == ledCount ? 0 : led + 1;
+        return LedFlasher.newSetCommand(led, (led & 1) == 0);
+    }
+
+    /** Decoding a full state read into the reusable scratch states. */
+    @Benchmark
+    public LedStates decodeState() {
+        LedFlasher.decodeState(mStateValue, mDecoded);
+        return mDecoded;
+    }
+
+    /** The commands needed to move a board from its current to its desired state. */
+    @Benchmark
+    public int appendSetCommands() {
+        mCommands.clear();
+        return LedFlasher.appendSetCommands(mCurrent, mDesired, mCommands);
+    }
+}
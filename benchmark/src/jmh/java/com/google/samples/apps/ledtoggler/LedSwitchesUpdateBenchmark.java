@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The data-set updates behind {@code LedSwitchesAdapter}: reconciling a state read with the
+ * tracked LED states and finding the rows to rebind, and optimistic toggles. The adapter's
+ * {@code notifyItem*} calls themselves need a RecyclerView and aren't measured; the number of
+ * rows that would be notified is returned instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LedSwitchesUpdateBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int ledCount;
+
+    private final LedStateTracker mTracker = new LedStateTracker();
+    private final LedStates mShownStates = new LedStates();
+    private final LedStates mShownPending = new LedStates();
+    // Two state reads differing in 1% of LEDs, alternated so every reconcile sees changes.
+    private final LedStates[] mReads = new LedStates[2];
+    private int mNextRead;
+    private int mNextLed;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mReads[0] = new LedStates(ledCount);
+        for (int i = 0; i < ledCount; i++) {
+            mReads[0].set(i, random.nextBoolean());
+        }
+        mReads[1] = new LedStates(mReads[0]);
+        for (int i = 0; i < ledCount; i += 100) {
+            mReads[1].toggle(i);
+        }
+        mTracker.onStateRead(mReads[0]);
+    }
+
+    /** A background state read, as applied by {@code LedSwitchesAdapter.reconcile}. */
+    @Benchmark
+    public int reconcile() {
+        mShownStates.copyFrom(mTracker.getDesired());
+        mShownPending.copyFrom(mTracker.getPending());
+        mNextRead ^= 1;
+        mTracker.onStateRead(mReads[mNextRead]);
+        return countChangedRows();
+    }
+
+    /** A toggle followed by its confirmation, each rebinding a single row. */
+    @Benchmark
+    public int toggleAndConfirm() {
+        int led = mNextLed;
+        mNextLed = led + 1 == ledCount ? 0 : led + 1;
+        boolean lightOn = mTracker.toggle(led);
+        mTracker.onCommandSucceeded(led, lightOn);
+        return led;
+    }
+
+    private int countChangedRows() {
+        LedStates desired = mTracker.getDesired();
+        LedStates pending = mTracker.getPending();
+        int changed = 0;
+        for (int i = mShownStates.nextDifference(desired, 0); i >= 0;
+                i = mShownStates.nextDifference(desired, i + 1)) {
+            changed++;
+        }
+        for (int i = mShownPending.nextDifference(pending, 0); i >= 0;
+                i = mShownPending.nextDifference(pending, i + 1)) {
+            changed++;
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 Google
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.samples.apps.ledtoggler;
+
+import com.google.android.apps.weave.apis.data.CommandResult;
+import com.google.android.apps.weave.apis.data.EventResultList;
+import com.google.android.apps.weave.apis.data.responses.Response;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Set commands and event reads served by the {@link SimulatedWeaveBackend}, with its latency and
+ * failures turned off, so the cost measured is the simulator's own bookkeeping and the
+ * {@code _ledflasher} encoding around it. Runs on a plain JVM, without boards or a network.
+ * State reads aren't measured: building a {@code DeviceState} calls Android's
+ * {@code TextUtils}, which the stub jar doesn't implement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SimulatedBackendBenchmark {
+
+    @Param({"4", "64", "1024"})
+    public int ledCount;
+
+    private SimulatedWeaveBackend mBackend;
+    private String mDeviceId;
+    private int mNextLed;
+
+    @Setup
+    public void setUp() {
+        SimulatedWeaveBackend.Config config = new SimulatedWeaveBackend.Config()
+                .setDeviceCount(1)
+                .setLedCount(ledCount)
+                .setLatency(0, 0, 0)
+                .setFailureRate(0);
+        mBackend = new SimulatedWeaveBackend(config, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        mDeviceId = mBackend.getDevices().get(0).getId();
+    }
+
+    /** A single set command, as sent for every toggle. */
+    @Benchmark
+    public Response<CommandResult> execute() {
+        int led = mNextLed;
+        mNextLed = led + 1 == ledCount ? 0 : led + 1;
+        return mBackend.execute(null, mDeviceId, LedFlasher.newSetCommand(led, (led & 1) == 0));
+    }
+
+    /** The event feed the LED screen polls for changes made elsewhere. */
+    @Benchmark
+    public Response<EventResultList> getEvents() {
+        return mBackend.getEvents(null, mDeviceId);
+    }
+
+    /** A copy of the simulated board's LEDs, as the load harness checks them. */
+    @Benchmark
+    public LedStates getLedStates() {
+        return mBackend.getLedStates(mDeviceId);
+    }
+}